@@ -0,0 +1,189 @@
+package dak.ant.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** InputStream over a memory mapped region of a file, used as the upload body of an S3 object
+  * or part.
+  * <p>
+  * Reads copy directly from the mapped pages into the caller's buffer, without the intermediate
+  * buffering and system call per read of a FileInputStream. A StorageClient that can send a
+  * ByteBuffer directly (e.g. HttpStorageClient) can use <code>buffer</code> instead and avoid
+  * the copy altogether. The stream supports mark/reset for request retries.
+  * <p>
+  * The mapping remains valid after the file channel has been closed and should be released with
+  * <code>unmap</code> as soon as the request has completed - otherwise it is only released when the
+  * region is garbage collected and until then the file cannot be deleted or replaced on Windows.
+  * The mapping is only released immediately if it has been read solely through the stream, which
+  * stops reading once the region is unmapped. Once a view has been handed out by <code>buffer</code>
+  * an asynchronous client may still be reading from it after the request has returned (e.g. a body
+  * still queued for the socket when S3 responds early, or an exchange abandoned after a timeout) and
+  * releasing the pages under it would crash the JVM, so the mapping is then left for the garbage
+  * collector to release once the last view is no longer referenced.
+  * Buffer positions are set through the Buffer base class so that the class runs on Java 8 when
+  * compiled on a later JDK.
+  *
+  * @author Tony Seebregts
+  */
+public class FileRegion extends InputStream {
+       // INSTANCE VARIABLES
+
+       private final ByteBuffer buffer;
+       private int              mark     = 0;
+       private boolean          shared   = false;
+       private boolean          unmapped = false;
+
+       // CLASS METHODS
+
+       /** Maps a region of a file channel read-only.
+         *
+         * @param channel File channel opened for reading.
+         * @param offset  Position of the first byte of the region.
+         * @param length  Number of bytes in the region. Must not be more than <code>Integer.MAX_VALUE</code>.
+         */
+       public static FileRegion map(FileChannel channel,long offset,long length) throws IOException {
+              if (length > Integer.MAX_VALUE)
+                 throw new IOException("Region too large to map (" + length + " bytes)");
+
+              MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,offset,length);
+
+              return new FileRegion(buffer);
+       }
+
+       /** Releases a mapped buffer immediately, using sun.misc.Unsafe.invokeCleaner on Java 9 and
+         * later and the buffer's Cleaner on Java 8. Returns <code>false</code> if neither is available,
+         * in which case the mapping is released when the buffer is garbage collected.
+         *
+         */
+       private static boolean unmap(ByteBuffer buffer) {
+               try { Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+                     Method   clean  = unsafe.getMethod("invokeCleaner",ByteBuffer.class);
+                     Field    field  = unsafe.getDeclaredField("theUnsafe");
+
+                     field.setAccessible(true);
+                     clean.invoke(field.get(null),buffer);
+
+                     return true;
+               } catch(Exception x) {
+                   // ... Java 8
+               }
+
+               try { Method cleaner = buffer.getClass().getMethod("cleaner");
+
+                     cleaner.setAccessible(true);
+
+                     Object clean = cleaner.invoke(buffer);
+
+                     if (clean != null) {
+                        clean.getClass().getMethod("clean").invoke(clean);
+                     }
+
+                     return true;
+               } catch(Exception x) {
+                   return false;
+               }
+       }
+
+       // CONSTRUCTORS
+
+       private FileRegion(ByteBuffer buffer) {
+               this.buffer = buffer;
+       }
+
+       // IMPLEMENTATION
+
+       /** Returns a read-only view of the entire region, independent of the stream position. The
+         * mapping is no longer released by <code>unmap</code> once a view has been returned.
+         *
+         */
+       public synchronized ByteBuffer buffer() {
+              ByteBuffer view = buffer.asReadOnlyBuffer();
+
+              shared = true;
+
+              ((Buffer) view).clear();
+
+              return view;
+       }
+
+       /** Returns the number of bytes in the region.
+         *
+         */
+       public long length() {
+              return buffer.capacity();
+       }
+
+       /** Releases the mapping. The region reads as empty afterwards. The pages are only released
+         * immediately if no view has been returned by <code>buffer</code> - otherwise they are
+         * released by the garbage collector once no view is in use.
+         *
+         */
+       public synchronized void unmap() {
+              if (!unmapped) {
+                 unmapped = true;
+
+                 if (!shared)
+                    unmap(buffer);
+              }
+       }
+
+       // *** InputStream ***
+
+       @Override
+       public synchronized int read() {
+              return !unmapped && buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+       }
+
+       @Override
+       public synchronized int read(byte[] bytes,int offset,int length) {
+              if (length == 0)
+                 return 0;
+
+              if (unmapped || !buffer.hasRemaining())
+                 return -1;
+
+              int N = Math.min(length,buffer.remaining());
+
+              buffer.get(bytes,offset,N);
+
+              return N;
+       }
+
+       @Override
+       public synchronized long skip(long N) {
+              if (unmapped)
+                 return 0;
+
+              int skipped = (int) Math.max(0,Math.min(N,buffer.remaining()));
+
+              ((Buffer) buffer).position(buffer.position() + skipped);
+
+              return skipped;
+       }
+
+       @Override
+       public synchronized int available() {
+              return unmapped ? 0 : buffer.remaining();
+       }
+
+       @Override
+       public boolean markSupported() {
+              return true;
+       }
+
+       @Override
+       public synchronized void mark(int limit) {
+              mark = buffer.position();
+       }
+
+       @Override
+       public synchronized void reset() {
+              ((Buffer) buffer).position(mark);
+       }
+}
@@ -0,0 +1,97 @@
+package dak.ant.storage;
+
+import java.util.List;
+
+import org.jets3t.service.S3Service;
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+/** Default StorageClient implementation, which delegates to a jets3t S3Service.
+  *
+  * @author Tony Seebregts
+  */
+public class Jets3tStorageClient implements StorageClient {
+
+       // INSTANCE VARIABLES
+
+       private final S3Service service;
+
+       // CONSTRUCTORS
+
+       /** Wraps an initialised S3Service.
+         *
+         */
+       public Jets3tStorageClient(S3Service service) {
+              this.service = service;
+       }
+
+       // *** StorageClient ***
+
+       @Override
+       public S3Object[] list(String bucket,String prefix) throws Exception {
+              if ((prefix == null) || prefix.isEmpty())
+                 return service.listObjects(bucket);
+
+              return service.listObjects(bucket,prefix,null);
+       }
+
+       @Override
+       public S3Object[] list(String bucket,String prefix,String after,int max) throws Exception {
+              StorageObjectsChunk chunk = service.listObjectsChunked(bucket,(prefix == null) || prefix.isEmpty() ? null : prefix,null,max,after);
+
+              return S3Object.cast(chunk.getObjects());
+       }
+
+       @Override
+       public StorageObject head(String bucket,String key) throws Exception {
+              return service.getObjectDetails(bucket,key);
+       }
+
+       @Override
+       public S3Object get(String bucket,String key,String etag,Long start,Long end) throws Exception {
+              return service.getObject(bucket,key,null,null,etag == null ? null : new String[] { etag },null,start,end);
+       }
+
+       @Override
+       public void put(String bucket,S3Object object) throws Exception {
+              service.putObject(bucket,object);
+       }
+
+       @Override
+       public MultipartUpload multipartStart(String bucket,S3Object object) throws Exception {
+              return service.multipartStartUpload(bucket,object);
+       }
+
+       @Override
+       public MultipartPart multipartPut(MultipartUpload upload,int part,S3Object slice) throws Exception {
+              return service.multipartUploadPart(upload,part,slice);
+       }
+
+       @Override
+       public MultipartPart multipartCopy(MultipartUpload upload,int part,String sourceBucket,String sourceKey,String etag,long start,long end) throws Exception {
+              return service.multipartUploadPartCopy(upload,part,sourceBucket,sourceKey,null,null,etag == null ? null : new String[] { etag },null,start,end,null);
+       }
+
+       @Override
+       public void multipartComplete(MultipartUpload upload,List<MultipartPart> parts) throws Exception {
+              service.multipartCompleteUpload(upload,parts);
+       }
+
+       @Override
+       public void multipartAbort(MultipartUpload upload) throws Exception {
+              service.multipartAbortUpload(upload);
+       }
+
+       @Override
+       public void copy(String sourceBucket,String sourceKey,String bucket,S3Object object,boolean replaceMetadata) throws Exception {
+              service.copyObject(sourceBucket,sourceKey,bucket,object,replaceMetadata);
+       }
+
+       @Override
+       public void delete(String bucket,String key) throws Exception {
+              service.deleteObject(bucket,key);
+       }
+}
@@ -0,0 +1,144 @@
+package dak.ant.storage;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/** AWS Signature Version 4 request signer for S3.
+  * <p>
+  * Request bodies are not hashed - requests are sent over HTTPS with an 'UNSIGNED-PAYLOAD' content hash.
+  *
+  * @author Tony Seebregts
+  */
+class SignatureV4 {
+      // CONSTANTS
+
+      static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+
+      private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+      private static final String SERVICE   = "s3";
+      private static final char[] HEX       = "0123456789abcdef".toCharArray();
+
+      // INSTANCE VARIABLES
+
+      private final String accessId;
+      private final String secretKey;
+      private final String region;
+      private String       date;
+      private byte[]       key;
+
+      // CLASS METHODS
+
+      /** URI encodes a string as required for S3 paths and query parameters, optionally leaving
+        * '/' unencoded.
+        *
+        */
+      static String encode(String string,boolean path) {
+             StringBuilder encoded = new StringBuilder();
+
+             for (byte b: string.getBytes(StandardCharsets.UTF_8)) {
+                 char c = (char) (b & 0xff);
+
+                 if (((c >= 'A') && (c <= 'Z')) || ((c >= 'a') && (c <= 'z')) || ((c >= '0') && (c <= '9')) || (c == '-') || (c == '_') || (c == '.') || (c == '~') || (path && (c == '/'))) {
+                    encoded.append(c);
+                 } else {
+                    encoded.append('%').append(Character.toUpperCase(HEX[c >> 4])).append(Character.toUpperCase(HEX[c & 0x0f]));
+                 }
+             }
+
+             return encoded.toString();
+      }
+
+      // CONSTRUCTORS
+
+      SignatureV4(String accessId,String secretKey,String region) {
+                  this.accessId  = accessId;
+                  this.secretKey = secretKey;
+                  this.region    = region;
+      }
+
+      // IMPLEMENTATION
+
+      /** Returns the Authorization header for a request.
+        *
+        * @param method    HTTP method.
+        * @param uri       Request URI, with the path and query already encoded and the query parameters sorted.
+        * @param headers   Headers to sign, keyed by lower case name. Must include <code>host</code>,
+        *                  <code>x-amz-date</code> and <code>x-amz-content-sha256</code>.
+        * @param timestamp Request timestamp (yyyyMMdd'T'HHmmss'Z'), as in the <code>x-amz-date</code> header.
+        */
+      String authorize(String method,URI uri,SortedMap<String,String> headers,String timestamp) throws Exception {
+             StringBuilder canonical = new StringBuilder();
+             StringBuilder signed    = new StringBuilder();
+             String        path      = uri.getRawPath();
+             String        query     = uri.getRawQuery();
+
+             canonical.append(method).append('\n');
+             canonical.append(path == null || path.isEmpty() ? "/" : path).append('\n');
+             canonical.append(query == null ? "" : query).append('\n');
+
+             for (Map.Entry<String,String> entry: headers.entrySet()) {
+                 canonical.append(entry.getKey()).append(':').append(entry.getValue().trim()).append('\n');
+
+                 if (signed.length() > 0)
+                    signed.append(';');
+
+                 signed.append(entry.getKey());
+             }
+
+             canonical.append('\n');
+             canonical.append(signed).append('\n');
+             canonical.append(headers.get("x-amz-content-sha256"));
+
+             String scope     = timestamp.substring(0,8) + "/" + region + "/" + SERVICE + "/aws4_request";
+             String sts       = ALGORITHM + "\n" + timestamp + "\n" + scope + "\n" + hex(sha256(canonical.toString()));
+             String signature = hex(hmac(key(timestamp.substring(0,8)),sts));
+
+             return ALGORITHM + " Credential=" + accessId + "/" + scope + ",SignedHeaders=" + signed + ",Signature=" + signature;
+      }
+
+      /** Returns the signing key for a date, which is cached until the date changes.
+        *
+        */
+      private synchronized byte[] key(String date) throws Exception {
+              if (!date.equals(this.date)) {
+                 byte[] k = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8),date);
+
+                 k = hmac(k,region);
+                 k = hmac(k,SERVICE);
+                 k = hmac(k,"aws4_request");
+
+                 this.date = date;
+                 this.key  = k;
+              }
+
+              return key;
+      }
+
+      private static byte[] hmac(byte[] key,String data) throws Exception {
+              Mac mac = Mac.getInstance("HmacSHA256");
+
+              mac.init(new SecretKeySpec(key,"HmacSHA256"));
+
+              return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+      }
+
+      private static byte[] sha256(String data) throws Exception {
+              return MessageDigest.getInstance("SHA-256").digest(data.getBytes(StandardCharsets.UTF_8));
+      }
+
+      private static String hex(byte[] bytes) {
+              StringBuilder hex = new StringBuilder();
+
+              for (byte b: bytes) {
+                  hex.append(HEX[(b >> 4) & 0x0f]).append(HEX[b & 0x0f]);
+              }
+
+              return hex.toString();
+      }
+}
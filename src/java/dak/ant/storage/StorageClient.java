@@ -0,0 +1,99 @@
+package dak.ant.storage;
+
+import java.util.List;
+
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+/** The S3 operations used by the tasks and S3FileSet, so that the HTTP transport can be swapped
+  * out without changing the tasks.
+  * <p>
+  * Objects, multipart uploads and parts are represented by the jets3t model classes. Errors from
+  * S3 are reported as jets3t ServiceException's with the HTTP response code and S3 error code set,
+  * so that they are retried and throttled in the same way whatever the transport.
+  * <p>
+  * Implementations must be safe for use by concurrent worker threads.
+  *
+  * @author Tony Seebregts
+  */
+public interface StorageClient {
+
+       /** Lists the objects in a bucket.
+         *
+         * @param bucket S3 bucket name.
+         * @param prefix Key prefix. Lists the entire bucket if <code>null</code> or empty.
+         */
+       public S3Object[] list(String bucket,String prefix) throws Exception;
+
+       /** Lists a page of the objects in a bucket, in key order.
+         *
+         * @param bucket S3 bucket name.
+         * @param prefix Key prefix. Lists the entire bucket if <code>null</code> or empty.
+         * @param after  Lists the objects with keys after this key. Lists from the first object if <code>null</code>.
+         * @param max    Maximum number of objects to return.
+         *
+         * @return The next page of objects, or an empty array once the listing is complete.
+         */
+       public S3Object[] list(String bucket,String prefix,String after,int max) throws Exception;
+
+       /** Returns the metadata of an S3 object.
+         *
+         */
+       public StorageObject head(String bucket,String key) throws Exception;
+
+       /** Gets an S3 object or a byte range of an S3 object. The caller is responsible for closing
+         * the data stream of the returned object.
+         *
+         * @param bucket S3 bucket name.
+         * @param key    S3 object key.
+         * @param etag   ETag the object must match. May be <code>null</code>.
+         * @param start  Position of the first byte of the range. May be <code>null</code>.
+         * @param end    Position of the last byte of the range. May be <code>null</code>.
+         */
+       public S3Object get(String bucket,String key,String etag,Long start,Long end) throws Exception;
+
+       /** Uploads an S3 object from its data input file or stream, with its metadata and ACL.
+         *
+         */
+       public void put(String bucket,S3Object object) throws Exception;
+
+       /** Starts a multipart upload with the key, metadata and ACL of <code>object</code>.
+         *
+         */
+       public MultipartUpload multipartStart(String bucket,S3Object object) throws Exception;
+
+       /** Uploads a part of a multipart upload from the data input stream of <code>slice</code>.
+         *
+         */
+       public MultipartPart multipartPut(MultipartUpload upload,int part,S3Object slice) throws Exception;
+
+       /** Copies a byte range of an S3 object as a part of a multipart upload.
+         *
+         * @param etag ETag the source object must match. May be <code>null</code>.
+         */
+       public MultipartPart multipartCopy(MultipartUpload upload,int part,String sourceBucket,String sourceKey,String etag,long start,long end) throws Exception;
+
+       /** Completes a multipart upload.
+         *
+         */
+       public void multipartComplete(MultipartUpload upload,List<MultipartPart> parts) throws Exception;
+
+       /** Aborts a multipart upload.
+         *
+         */
+       public void multipartAbort(MultipartUpload upload) throws Exception;
+
+       /** Copies an S3 object within S3.
+         *
+         * @param replaceMetadata Replaces the metadata of the copy with the metadata of <code>object</code>
+         *                        if <code>true</code>, otherwise keeps the source object metadata.
+         */
+       public void copy(String sourceBucket,String sourceKey,String bucket,S3Object object,boolean replaceMetadata) throws Exception;
+
+       /** Deletes an S3 object.
+         *
+         */
+       public void delete(String bucket,String key) throws Exception;
+}
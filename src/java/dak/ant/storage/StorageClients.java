@@ -0,0 +1,61 @@
+package dak.ant.storage;
+
+import java.lang.reflect.InvocationTargetException;
+
+import org.jets3t.service.Jets3tProperties;
+
+/** Creates the StorageClient for the 'http' transport.
+  * <p>
+  * HttpStorageClient uses <code>java.net.http</code> and is compiled for Java 11 (from
+  * <code>src/java11</code>). It is loaded by name only when the transport is selected, so that the
+  * rest of awstasks still runs on Java 8 and the 'http' transport works however awstasks is loaded.
+  *
+  * @author Tony Seebregts
+  */
+public class StorageClients {
+
+       // CONSTANTS
+
+       private static final String HTTP = "dak.ant.storage.HttpStorageClient";
+
+       private static final int CONNECTION_TIMEOUT = 60000;
+       private static final int SOCKET_TIMEOUT     = 60000;
+
+       // CLASS METHODS
+
+       /** Creates a StorageClient on <code>java.net.http.HttpClient</code>.
+         *
+         * @param accessId   AWS access ID.
+         * @param secretKey  AWS secret key.
+         * @param region     AWS region of the buckets e.g. 'us-east-1'.
+         * @param properties jets3t properties of the task or session service. The connect and request
+         *                   timeouts are taken from <code>httpclient.connection-timeout-ms</code> and
+         *                   <code>httpclient.socket-timeout-ms</code> (60 seconds by default, as for jets3t).
+         *
+         * @throws UnsupportedOperationException Thrown if the 'http' transport is not available on this
+         *                                       JVM or in this build of awstasks.
+         */
+       public static StorageClient http(String accessId,String secretKey,String region,Jets3tProperties properties) throws UnsupportedOperationException {
+              int connectTimeout = properties.getIntProperty("httpclient.connection-timeout-ms",CONNECTION_TIMEOUT);
+              int socketTimeout  = properties.getIntProperty("httpclient.socket-timeout-ms",SOCKET_TIMEOUT);
+
+              try { return (StorageClient) Class.forName(HTTP).getConstructor(String.class,String.class,String.class,int.class,int.class).newInstance(accessId,secretKey,region,connectTimeout,socketTimeout);
+              } catch(UnsupportedClassVersionError x) {
+                  throw new UnsupportedOperationException("transport='http' requires Java 11 or later (running on Java " + System.getProperty("java.version") + ")");
+              } catch(ClassNotFoundException x) {
+                  throw new UnsupportedOperationException("transport='http' is not included in this build of awstasks - it must be built with Java 11 or later");
+              } catch(InvocationTargetException x) {
+                  if (x.getCause() instanceof RuntimeException)
+                     throw (RuntimeException) x.getCause();
+
+                  throw new IllegalStateException("Could not create the 'http' transport",x.getCause());
+              } catch(ReflectiveOperationException x) {
+                  throw new IllegalStateException("Could not create the 'http' transport",x);
+              }
+       }
+
+       // CONSTRUCTORS
+
+       private StorageClients() {
+       }
+}
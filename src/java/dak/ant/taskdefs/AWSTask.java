@@ -1,22 +1,56 @@
 package dak.ant.taskdefs;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.text.Normalizer;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.taskdefs.MatchingTask;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.LogLevel;
 import org.jets3t.service.Constants;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageService;
 import org.jets3t.service.acl.AccessControlList;
+import org.jets3t.service.acl.GroupGrantee;
+import org.jets3t.service.acl.Permission;
 import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.io.RepeatableFileInputStream;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
 import org.jets3t.service.model.S3Bucket;
 import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.security.AWSCredentials;
+import org.jets3t.service.utils.FileComparer;
+import org.jets3t.service.utils.FileComparerResults;
 import org.jets3t.service.utils.ServiceUtils;
 
+import dak.ant.storage.FileRegion;
+import dak.ant.storage.Jets3tStorageClient;
+import dak.ant.storage.StorageClient;
+import dak.ant.storage.StorageClients;
+import dak.ant.types.S3File;
+import dak.ant.types.S3Session;
+
 /** This class provides basic S3 actions as an Ant task.
   *
   * @author D. Kavanagh
@@ -28,6 +62,16 @@ public abstract class AWSTask extends MatchingTask {
 
        private static final long MAX_AGE = 3 * 60 * 60 * 24 * 30L;
 
+       private static final String TRANSPORT_JETS3T = "jets3t";
+       private static final String TRANSPORT_HTTP   = "http";
+
+       private static final long MIN_PART_SIZE = 5 * 1024 * 1024L;
+       static final int          MAX_PARTS     = 10000;
+
+       private static final String METADATA_MD5 = "md5-hash";
+
+       private static final Pattern PARTIAL = Pattern.compile("\\..+\\.part");
+
        @SuppressWarnings("serial")
        private static final DateFormat DF = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z")
                                                 {{ setTimeZone(TimeZone.getTimeZone("GMT"));
@@ -37,11 +81,74 @@ public abstract class AWSTask extends MatchingTask {
 
        protected boolean verbose     = false;
        protected boolean failOnError = false;
+       protected int     threads     = 1;
+       protected boolean adaptive    = false;
+       protected int     retries     = 3;
+       protected int     retryBudget = 10;
+       protected boolean hedge       = false;
+       protected int     hedgeBudget = 5;
+
+       protected Scheduler.ORDER schedule = Scheduler.ORDER.LISTED;
+
+       protected String  transport = TRANSPORT_JETS3T;
+       protected String  region    = "us-east-1";
+
+       protected long    maxUploadBytesPerSecond   = 0;
+       protected long    maxDownloadBytesPerSecond = 0;
+
+       protected long    multipartThreshold = 64 * 1024 * 1024L;
+       protected long    partSize           = 16 * 1024 * 1024L;
+       protected long    rangedThreshold    = 64 * 1024 * 1024L;
+
+       protected int     readAhead       = 0;
+       protected long    readAheadBuffer = 32 * 1024 * 1024L;
+       protected boolean memoryMapped    = false;
+
+       protected DownloadWriter.FSYNC fsync      = DownloadWriter.FSYNC.NEVER;
+       protected int                  fsyncBatch = 64;
+
+       private ConcurrencyController controller;
+       private RetryPolicy           retryPolicy;
+       private Hedger                hedger;
+       private Bandwidth             uploadBandwidth;
+       private Bandwidth             downloadBandwidth;
+       private StorageClient         client;
+       private ReadAhead             prefetcher;
+       private DownloadWriter        writer;
+
+       private final Map<File,List<String>> partials = new HashMap<File,List<String>>();
+
+       UploadJournal journal;
        protected String  accessId;
        protected String  secretKey;
+       protected S3Session session;
 
        // CLASS METHODS
 
+       /** Returns the files included by a fileset. The temporary files of interrupted downloads (see
+         * <code>partial</code>) are excluded along with the Ant default excludes, so that a directory
+         * that is both downloaded to and uploaded from does not upload them, unless the fileset has
+         * <code>defaultexcludes="no"</code>.
+         *
+         * @param fs Fileset.
+         * @param ds Directory scanner for the fileset.
+         */
+       protected static String[] included(FileSet fs,DirectoryScanner ds) {
+                 String[] files = ds.getIncludedFiles();
+
+                 if (!fs.getDefaultexcludes())
+                    return files;
+
+                 List<String> list = new ArrayList<String>();
+
+                 for (String file: files) {
+                     if (!PARTIAL.matcher(new File(file).getName()).matches())
+                        list.add(file);
+                 }
+
+                 return list.toArray(new String[0]);
+       }
+
        /** Returns <code>true</code> if an S3Object is most probably a directory i.e. either isDirectoryPlaceHolder
          * is set and the content length is zero or the contentType is "application/x-directory".
          */
@@ -76,6 +183,35 @@ public abstract class AWSTask extends MatchingTask {
                  return Normalizer.isNormalized(string, form) ? string : Normalizer.normalize(string, form);
        }
 
+       /** Parses a size attribute e.g. '16MB'. Accepts an optional K, M or G suffix (with or
+         * without a trailing B) as a binary multiplier.
+         *
+         * @throws BuildException Thrown if the size is not a valid number.
+         */
+       protected static long parseSize(String size) throws BuildException {
+                 String string     = size.trim().toUpperCase();
+                 long   multiplier = 1;
+
+                 if (string.endsWith("B"))
+                    string = string.substring(0,string.length() - 1);
+
+                 if (string.endsWith("K")) {
+                    multiplier = 1024L;
+                 } else if (string.endsWith("M")) {
+                    multiplier = 1024L * 1024L;
+                 } else if (string.endsWith("G")) {
+                    multiplier = 1024L * 1024L * 1024L;
+                 }
+
+                 if (multiplier > 1)
+                    string = string.substring(0,string.length() - 1);
+
+                 try { return Long.parseLong(string.trim()) * multiplier;
+                 } catch(NumberFormatException x) {
+                     throw new BuildException("Invalid size '" + size + "'");
+                 }
+       }
+
        /** Gracefully closes an I/O stream.
          *
          */
@@ -118,14 +254,704 @@ public abstract class AWSTask extends MatchingTask {
               this.failOnError = failOnError;
        }
 
+       /** Nested element to use a shared S3session (usually by <code>refid</code>) in place of the 
+         * <code>accessId</code> and <code>secretKey</code> attributes.
+         *
+         */
+       public S3Session createS3Session() {
+              if (session != null)
+                 throw new BuildException("Only one S3session may be specified");
+
+              session = new S3Session();
+
+              session.setProject(getProject());
+
+              return session;
+       }
+
+       /** Task attribute to select the HTTP transport for S3 requests. 'jets3t' (the default) uses the jets3t 
+         * REST service, 'http' uses the Java 11+ <code>java.net.http.HttpClient</code>. Ignored if the task has 
+         * an S3session, which has its own <code>transport</code> attribute.
+         *
+         */
+       public void setTransport(String transport) {
+              if (!TRANSPORT_JETS3T.equalsIgnoreCase(transport) && !TRANSPORT_HTTP.equalsIgnoreCase(transport))
+                 throw new BuildException("Invalid 'transport' attribute: " + transport);
+
+              this.transport = transport.toLowerCase();
+       }
+
+       /** Task attribute to set the AWS region of the buckets for the 'http' transport. The default value
+         * is 'us-east-1'.
+         *
+         */
+       public void setRegion(String region) {
+              this.region = region;
+       }
+
+       /** Task attribute to set the number of S3 transfers to run concurrently. The default
+         * value is 1. On Java 21 and later transfers run on virtual threads, so this can be set
+         * to hundreds or thousands. The kind of thread used is logged in verbose mode.
+         *
+         */
+       public void setThreads(int threads) {
+              this.threads = threads;
+       }
+
+       /** Task attribute to adjust the number of concurrent S3 requests to suit S3. If <code>true</code>, the
+         * number of requests in flight starts low and is increased while S3 responds promptly and cut back 
+         * when S3 throttles requests, up to a maximum of <code>threads</code>. The default value is 
+         * <code>false</code>.
+         *
+         */
+       public void setAdaptive(boolean adaptive) {
+              this.adaptive = adaptive;
+       }
+
+       /** Task attribute to set the number of times to retry an S3 request that fails with a server 
+         * error, throttling or a network failure. The default value is 3.
+         *
+         */
+       public void setRetries(int retries) {
+              this.retries = retries;
+       }
+
+       /** Task attribute to limit the total number of retries for the task to 10 plus a percentage of
+         * the S3 requests made. The default value is 10 (percent).
+         *
+         */
+       public void setRetryBudget(int retryBudget) {
+              this.retryBudget = retryBudget;
+       }
+
+       /** Task attribute to hedge S3 GET and HEAD requests. If <code>true</code>, a request that takes
+         * longer than 95% of the requests made so far is sent again and whichever response arrives first
+         * is used. The default value is <code>false</code>.
+         *
+         */
+       public void setHedge(boolean hedge) {
+              this.hedge = hedge;
+       }
+
+       /** Task attribute to limit the number of hedged requests to a percentage of the S3 GET and HEAD
+         * requests made. The default value is 5 (percent).
+         *
+         */
+       public void setHedgeBudget(int hedgeBudget) {
+              this.hedgeBudget = hedgeBudget;
+       }
+
+       /** Task attribute to set the order in which files are transferred. 'listed' (the default) transfers
+         * files in the order in which they are listed, 'size' transfers the largest files first interleaved 
+         * with the smallest files and 'prefix' spreads concurrent requests across the S3 key space to avoid
+         * throttling on keys with a long common prefix. 'size' and 'prefix' order the transfers across the
+         * whole of each fileset, so transfers of new or changed files start only once the bucket has been
+         * listed and compared.
+         *
+         */
+       public void setSchedule(String schedule) {
+              this.schedule = Scheduler.ORDER.parse(schedule);
+
+              if (this.schedule == null)
+                 throw new BuildException("Invalid 'schedule' attribute: " + schedule);
+       }
+
+       /** Task attribute to limit the combined rate of all the uploads of this task e.g. '2MB'. The 
+         * default value is 0 i.e. no limit.
+         *
+         */
+       public void setMaxUploadBytesPerSecond(String rate) {
+              this.maxUploadBytesPerSecond = parseSize(rate);
+       }
+
+       /** Task attribute to limit the combined rate of all the downloads of this task e.g. '2MB'. The 
+         * default value is 0 i.e. no limit.
+         *
+         */
+       public void setMaxDownloadBytesPerSecond(String rate) {
+              this.maxDownloadBytesPerSecond = parseSize(rate);
+       }
+
+       /** Task attribute to set the file size above which files are uploaded (or objects copied) as
+         * multipart uploads e.g. '64MB'. The default value is 64MB.
+         *
+         */
+       public void setMultipartThreshold(String threshold) {
+              this.multipartThreshold = parseSize(threshold);
+       }
+
+       /** Task attribute to set the part size for multipart uploads, copies and ranged downloads e.g. '16MB'.
+         * The default value is 16MB. Sizes smaller than the S3 minimum of 5MB are rounded up to 5MB.
+         *
+         */
+       public void setPartSize(String partSize) {
+              this.partSize = Math.max(MIN_PART_SIZE,parseSize(partSize));
+       }
+
+       /** Task attribute to set the object size above which objects are downloaded as concurrent
+         * byte ranges e.g. '64MB'. The default value is 64MB.
+         *
+         */
+       public void setRangedThreshold(String threshold) {
+              this.rangedThreshold = parseSize(threshold);
+       }
+
+       /** Task attribute to set the number of files to read ahead into memory while the current files are
+         * uploading. Only files small enough to be uploaded with a single PUT are read ahead. The default value
+         * is 0 i.e. no read-ahead.
+         *
+         */
+       public void setReadAhead(int files) {
+              this.readAhead = files;
+       }
+
+       /** Task attribute to set the maximum memory used for read-ahead e.g. '32MB'. The default value is 32MB.
+         *
+         */
+       public void setReadAheadBuffer(String size) {
+              this.readAheadBuffer = parseSize(size);
+       }
+
+       /** Task attribute to upload files (and the parts of multipart uploads) from memory mapped regions of
+         * the file rather than through a FileInputStream. Avoids the intermediate copies and buffering of
+         * a stream and, with the 'http' transport, sends the request body directly from the mapped pages.
+         * The default value is <code>false</code>.
+         *
+         */
+       public void setMemoryMapped(boolean memoryMapped) {
+              this.memoryMapped = memoryMapped;
+       }
+
+       /** Task attribute to set when downloaded files are forced to disk:
+         * <ul>
+         * <li>never - leaves it to the operating system (the default)
+         * <li>file  - forces each file as it is downloaded
+         * <li>batch - forces files (and their directories) in batches of <code>fsyncBatch</code> files
+         *             and once all the downloads have finished
+         * </ul>
+         *
+         */
+       public void setFsync(String fsync) {
+              this.fsync = DownloadWriter.FSYNC.parse(fsync);
+
+              if (this.fsync == null)
+                 throw new BuildException("Invalid 'fsync' attribute: " + fsync);
+       }
+
+       /** Task attribute to set the number of files per fsync for <code>fsync="batch"</code>. The
+         * default value is 64.
+         *
+         */
+       public void setFsyncBatch(int fsyncBatch) {
+              this.fsyncBatch = fsyncBatch;
+       }
+
        // IMPLEMENTATION
 
+       /** Serialises task logging so that messages from concurrent transfer threads
+         * are not interleaved.
+         *
+         */
+       @Override
+       public synchronized void log(String message,int level) {
+              super.log(message,level);
+       }
+
+       /** Returns the concurrency controller shared by all the worker pools of this task, or
+         * <code>null</code> if the task attribute <code>adaptive</code> is not set.
+         *
+         */
+       synchronized ConcurrencyController controller() {
+                    if (adaptive && (controller == null)) {
+                       controller = new ConcurrencyController(this,threads);
+                    }
+
+                    return controller;
+       }
+
+       /** Returns the retry policy shared by all the worker pools of this task.
+         *
+         */
+       synchronized RetryPolicy retryPolicy() {
+                    if (retryPolicy == null) {
+                       retryPolicy = new RetryPolicy(retries,retryBudget);
+                    }
+
+                    return retryPolicy;
+       }
+
+       /** Makes a request that is not run on a worker pool e.g. a bucket listing, retrying it
+         * according to the task retry policy. The jets3t HTTP client retries are disabled when the
+         * task has a retry policy (see <code>service</code>), so without this such requests would
+         * not be retried at all.
+         *
+         * @param description Request description for the log e.g. "listing of 'bucket'".
+         * @param request     Request to make.
+         *
+         * @return The request result.
+         *
+         * @throws Exception Thrown if the request fails and should not (or can no longer) be retried.
+         */
+       <T> T retry(String description,Callable<T> request) throws Exception {
+           RetryPolicy policy  = retryPolicy();
+           int         attempt = 0;
+
+           while (true) {
+                 policy.before();
+
+                 try { T result = request.call();
+
+                       policy.success();
+
+                       return result;
+                 } catch(Exception x) {
+                     long delay = policy.failure(x,attempt);
+
+                     if (delay < 0)
+                        throw x;
+
+                     attempt++;
+
+                     log("Retrying " + description + " (" + attempt + " of " + policy.retries() + ") [" + x.getMessage() + "]",LogLevel.VERBOSE.getLevel());
+
+                     Thread.sleep(delay);
+                 }
+           }
+       }
+
+       /** Returns a list of files in the order set by the task attribute <code>schedule</code>.
+         *
+         */
+       protected <T extends File> List<T> schedule(Collection<T> files) {
+                 return Scheduler.schedule(files,schedule,new Scheduler.Size<T>() {
+                                                              @Override
+                                                              public long of(T file) {
+                                                                     return file.length();
+                                                              }
+                                                          },
+                                                          new Scheduler.Key<T>() {
+                                                              @Override
+                                                              public String of(T file) {
+                                                                     return file instanceof S3File ? ((S3File) file).getKey() : file.getPath();
+                                                              }
+                                                          });
+       }
+
+       /** Returns a list of S3 keys e.g. of objects to delete in the order set by the task attribute
+         * <code>schedule</code>. Requests on keys alone all cost much the same, so the 'size' order
+         * leaves the keys in listed order and only the 'prefix' order changes it.
+         *
+         */
+       protected List<String> scheduleKeys(Collection<String> keys) {
+                 Scheduler.ORDER order = schedule == Scheduler.ORDER.SIZE ? Scheduler.ORDER.LISTED : schedule;
+
+                 return Scheduler.schedule(keys,order,null,new Scheduler.Key<String>() {
+                                                               @Override
+                                                               public String of(String key) {
+                                                                      return key;
+                                                               }
+                                                           });
+       }
+
+       /** Returns the download writer shared by all the downloads of this task.
+         *
+         */
+       synchronized DownloadWriter writer() {
+                    if (writer == null) {
+                       writer = new DownloadWriter(fsync,fsyncBatch);
+                    }
+
+                    return writer;
+       }
+
+       /** Returns the temporary file to which an object is downloaded before being renamed to
+         * <code>file</code>. The name includes the object ETag so that a partial download is only
+         * ever resumed against the same version of the object.
+         *
+         */
+       protected static File partial(File file,String etag) {
+                 String tag = etag == null ? "" : "." + etag.replaceAll("[^A-Za-z0-9\\-]","");
+
+                 return new File(file.getAbsoluteFile().getParentFile(),"." + file.getName() + tag + ".part");
+       }
+
+       /** Deletes the temporary files left by interrupted downloads of other versions of an object i.e.
+         * with a different ETag, which can no longer be resumed. Each directory is only listed once
+         * per task.
+         *
+         * @param file Destination file.
+         * @param etag Current object ETag. All temporary files for the destination are deleted if
+         *             <code>null</code>.
+         */
+       protected void discardStale(File file,String etag) {
+                 File    dir   = file.getAbsoluteFile().getParentFile();
+                 String  keep  = etag == null ? null : partial(file,etag).getName();
+                 Pattern stale = Pattern.compile(Pattern.quote("." + file.getName()) + "(\\.[A-Za-z0-9\\-]+)?\\.part");
+
+                 synchronized(partials) {
+                      List<String> names = partials.get(dir);
+
+                      if (names == null) {
+                         String[] list = dir.list();
+
+                         names = new ArrayList<String>();
+
+                         if (list != null) {
+                            for (String name: list) {
+                                if (PARTIAL.matcher(name).matches())
+                                   names.add(name);
+                            }
+                         }
+
+                         partials.put(dir,names);
+                      }
+
+                      Iterator<String> ix = names.iterator();
+
+                      while (ix.hasNext()) {
+                            String name = ix.next();
+
+                            if (!name.equals(keep) && stale.matcher(name).matches()) {
+                               if (verbose) {
+                                  log("Deleting stale partial download '" + name + "'");
+                               }
+
+                               new File(dir,name).delete();
+                               ix.remove();
+                            }
+                      }
+                 }
+       }
+
+       /** Saves a downloaded object to a temporary file through the task's DownloadWriter and renames
+         * it to <code>file</code> once complete. The DownloadWriter extends the file to the object
+         * length (as a sparse file) and applies the task <code>fsync</code> policy.
+         *
+         * @param in     Object data stream. Not closed by this method.
+         * @param object Downloaded object.
+         * @param file   Destination file.
+         *
+         * @throws IOException Thrown if the file could not be written or the download was incomplete.
+         *                     The temporary file is left in place so that the download can be resumed.
+         */
+       protected void save(InputStream in,StorageObject object,File file) throws IOException {
+                 File part = partial(file,object.getETag());
+
+                 discardStale(file,object.getETag());
+
+                 writer().write(in,part,0,object.getContentLength());
+                 writer().commit(part,file);
+       }
+
+       /** Resumes an interrupted download from the temporary file left by <code>save</code>, with a
+         * ranged GET conditional on the object ETag for the remainder of the object.
+         *
+         * @param s3     Initialised S3Service.
+         * @param bucket S3 bucket name.
+         * @param key    S3 object key.
+         * @param etag   Object ETag. Nothing is resumed if <code>null</code>.
+         * @param length Object Content-Length.
+         * @param file   Destination file.
+         *
+         * @return <code>true</code> if the download was resumed and completed, <code>false</code> if there
+         *         was nothing to resume (or the object has changed) and the object should be downloaded
+         *         in full.
+         *
+         * @throws Exception Thrown if the resumed download fails. The temporary file is left in place.
+         */
+       protected boolean resume(S3Service s3,String bucket,String key,String etag,long length,File file) throws Exception {
+                 if (etag == null)
+                    return false;
+
+                 discardStale(file,etag);
+
+                 File     part   = partial(file,etag);
+                 long     offset = DownloadWriter.resumable(part,length);
+                 S3Object object;
+
+                 if ((offset <= 0) || (offset >= length))
+                    return false;
+
+                 try { object = get(s3,bucket,key,etag,offset,length - 1);
+                 } catch(ServiceException x) {
+                     if ((x.getResponseCode() == 412) || (x.getResponseCode() == 416)) {
+                        part.delete();
+                        return false;
+                     }
+
+                     throw x;
+                 }
+
+                 if (verbose) {
+                    log("Resuming [" + key + "] at byte " + offset);
+                 }
+
+                 InputStream in = throttleDownload(object.getDataInputStream());
+
+                 try { writer().write(in,part,offset,length);
+                 } finally {
+                     close(in);
+                 }
+
+                 writer().commit(part,file);
+
+                 return true;
+       }
+
+       /** Forces any downloaded files not yet forced to disk by <code>fsync="batch"</code>. Called once
+         * all the downloads of the task have finished.
+         *
+         */
+       protected void syncDownloads() throws IOException {
+                 writer().sync();
+       }
+
+       /** Returns the hedger shared by all the GET and HEAD requests of this task, or <code>null</code>
+         * if the task attribute <code>hedge</code> is not set.
+         *
+         */
+       synchronized Hedger hedger() {
+                    if (hedge && (hedger == null)) {
+                       hedger = new Hedger(hedgeBudget);
+                    }
+
+                    return hedger;
+       }
+
+       /** Starts reading a file that has been queued for upload into memory, if the task attribute
+         * <code>readAhead</code> is set and the file will be uploaded with a single PUT.
+         *
+         */
+       protected void prefetch(File file) {
+                 ReadAhead prefetcher = readAhead();
+
+                 if ((prefetcher != null) && file.isFile() && !isMultipart(file.length())) {
+                    prefetcher.prefetch(file);
+                 }
+       }
+
+       /** Returns the space used by a file that was read ahead but will not be uploaded (e.g. because its
+         * upload could not be queued) to the read-ahead budget.
+         *
+         */
+       protected synchronized void discardPrefetch(File file) {
+                 if (prefetcher != null) {
+                    prefetcher.discard(file);
+                 }
+       }
+
+       /** Stops the read-ahead threads and discards any files that were read ahead but not uploaded.
+         *
+         */
+       protected synchronized void endPrefetch() {
+                 if (prefetcher != null) {
+                    prefetcher.shutdown();
+                    prefetcher = null;
+                 }
+       }
+
+       /** Returns the read-ahead shared by all the uploads of this task, or <code>null</code> if the
+         * task attribute <code>readAhead</code> is not set.
+         *
+         */
+       private synchronized ReadAhead readAhead() {
+               if ((readAhead > 0) && (prefetcher == null)) {
+                  String name = getTaskName() == null ? "aws" : getTaskName();
+
+                  prefetcher = new ReadAhead(name + "-read",readAhead,readAheadBuffer,Math.min(readAhead,threads));
+               }
+
+               return prefetcher;
+       }
+
+       /** Wraps an upload stream so that it is limited by the task attribute <code>maxUploadBytesPerSecond</code>.
+         * Returns the stream unchanged if there is no limit.
+         *
+         */
+       protected InputStream throttleUpload(InputStream in) {
+                 Bandwidth bandwidth;
+
+                 synchronized(this) {
+                      if ((maxUploadBytesPerSecond > 0) && (uploadBandwidth == null)) {
+                         uploadBandwidth = new Bandwidth(maxUploadBytesPerSecond);
+                      }
+
+                      bandwidth = uploadBandwidth;
+                 }
+
+                 return bandwidth == null ? in : bandwidth.throttle(in);
+       }
+
+       /** Wraps a download stream so that it is limited by the task attribute <code>maxDownloadBytesPerSecond</code>.
+         * Returns the stream unchanged if there is no limit.
+         *
+         */
+       protected InputStream throttleDownload(InputStream in) {
+                 Bandwidth bandwidth;
+
+                 synchronized(this) {
+                      if ((maxDownloadBytesPerSecond > 0) && (downloadBandwidth == null)) {
+                         downloadBandwidth = new Bandwidth(maxDownloadBytesPerSecond);
+                      }
+
+                      bandwidth = downloadBandwidth;
+                 }
+
+                 return bandwidth == null ? in : bandwidth.throttle(in);
+       }
+
+       /** Gets an S3 object, hedging the request if the task attribute <code>hedge</code> is set.
+         *
+         * @param s3     Initialised S3Service.
+         * @param bucket S3 bucket name.
+         * @param key    S3 object key.
+         * @param etag   ETag the object must match. May be <code>null</code>.
+         * @param start  Position of the first byte of the range to get. May be <code>null</code>.
+         * @param end    Position of the last byte of the range to get. May be <code>null</code>.
+         *
+         * @return S3 object with an open data stream.
+         */
+       protected S3Object get(S3Service s3,final String bucket,final String key,final String etag,final Long start,final Long end) throws Exception {
+                 final StorageClient client = client(s3);
+                 Hedger              hedger = hedger();
+
+                 if (hedger == null)
+                    return client.get(bucket,key,etag,start,end);
+
+                 Hedger.KIND kind = (start == null) && (end == null) ? Hedger.KIND.GET : Hedger.KIND.RANGE;
+
+                 return hedger.call(kind,new Hedger.Request<S3Object>() {
+                                        @Override
+                                        public S3Object call() throws Exception {
+                                               return client.get(bucket,key,etag,start,end);
+                                        }
+
+                                        @Override
+                                        public void discard(S3Object object) {
+                                               try { object.closeDataInputStream();
+                                               } catch(IOException x) {
+                                               }
+                                        }
+                                    });
+       }
+
+       /** Gets the details of an S3 object, hedging the request if the task attribute <code>hedge</code> is set.
+         *
+         * @param s3     Initialised S3Service.
+         * @param bucket S3 bucket name.
+         * @param key    S3 object key.
+         *
+         * @return S3 object details.
+         */
+       protected StorageObject head(S3Service s3,final String bucket,final String key) throws Exception {
+                 final StorageClient client = client(s3);
+                 Hedger              hedger = hedger();
+
+                 if (hedger == null)
+                    return client.head(bucket,key);
+
+                 return hedger.call(Hedger.KIND.HEAD,new Hedger.Request<StorageObject>() {
+                                        @Override
+                                        public StorageObject call() throws Exception {
+                                               return client.head(bucket,key);
+                                        }
+
+                                        @Override
+                                        public void discard(StorageObject object) {
+                                        }
+                                    });
+       }
+
+       /** Creates the S3 service for this task. Returns the shared service if the task has a nested
+         * S3session, otherwise creates a new service from the task credentials. Failed requests are
+         * retried by the task retry policy, so the jets3t HTTP client retries are disabled unless
+         * <code>retries</code> is 0. The HTTP connection pool is enlarged to <code>threads</code>
+         * connections if that is more than the jets3t default (20), so that transfers on virtual threads
+         * are not all queued waiting for a connection.
+         *
+         */
+       protected RestS3Service service() throws Exception {
+                 log("Running transfers on " + WorkerThreads.describe(),LogLevel.VERBOSE.getLevel());
+
+                 if (session != null)
+                    return session.getService();
+
+                 Jets3tProperties properties = new Jets3tProperties();
+
+                 properties.loadAndReplaceProperties(Jets3tProperties.getInstance(Constants.JETS3T_PROPERTIES_FILENAME),Constants.JETS3T_PROPERTIES_FILENAME);
+
+                 if (retries > 0)
+                    properties.setProperty("httpclient.retry-max","0");
+
+                 if (threads > properties.getIntProperty("httpclient.max-connections",20)) {
+                    properties.setProperty("httpclient.max-connections",         Integer.toString(threads));
+                    properties.setProperty("httpclient.max-connections-per-host",Integer.toString(threads));
+                 }
+
+                 return new RestS3Service(new AWSCredentials(accessId,secretKey),null,null,properties);
+       }
+
+       /** Returns the storage client for S3 requests. Returns the shared client if the task has a nested
+         * S3session, otherwise a client for the <code>transport</code> task attribute - the 'jets3t' client
+         * wraps the service passed in.
+         *
+         */
+       protected StorageClient client(S3Service s3) {
+                 if (session != null)
+                    return session.getClient();
+
+                 if (!TRANSPORT_HTTP.equals(transport))
+                    return new Jets3tStorageClient(s3);
+
+                 synchronized(this) {
+                      if (client == null) {
+                         try { client = StorageClients.http(accessId,secretKey,region,s3.getJetS3tProperties());
+                         } catch(UnsupportedOperationException x) {
+                             throw new BuildException(x.getMessage());
+                         }
+                      }
+
+                      return client;
+                 }
+       }
+
+       /** Returns the bucket ACL with public read access granted, for uploading publicly readable objects.
+         * The ACL is cached by the S3session if the task has one.
+         *
+         */
+       protected AccessControlList publicReadAcl(final RestS3Service s3,final S3Bucket bucket) throws Exception {
+                 return retry("ACL of '" + bucket.getName() + "'",new Callable<AccessControlList>() {
+                                  @Override
+                                  public AccessControlList call() throws Exception {
+                                         if (session != null)
+                                            return session.getPublicReadAcl(bucket.getName());
+
+                                         AccessControlList acl = s3.getBucketAcl(bucket);
+
+                                         acl.grantPermission(GroupGrantee.ALL_USERS,Permission.PERMISSION_READ);
+
+                                         return acl;
+                                  }
+                              });
+       }
+
+       /** Returns the storage client for requests that are not made on a worker pool, which retries
+         * bucket listings and HEAD requests according to the task retry policy. Used to list S3Filesets.
+         *
+         */
+       protected StorageClient listing(S3Service s3) {
+                 return new RetryingStorageClient(this,client(s3));
+       }
+
        /** Check that the AWS credentials have been set.
          *
          * @since Ant 1.5
          * @exception BuildException if an error occurs
          */
        protected void checkParameters() throws BuildException {
+                 if (session != null)
+                    return;
+
                  if (accessId == null)
                     throw new BuildException("accessId must be set");
 
@@ -209,6 +1035,214 @@ public abstract class AWSTask extends MatchingTask {
                  return buildFileMap(root,list,prefix);
        }
 
+       /** Compares a local file map with the objects in an S3 bucket.
+         *
+         * @param service Initialised S3 service.
+         * @param bucket  S3 bucket name.
+         * @param files   Local files keyed on the equivalent S3 object key e.g. from <code>buildFileMap</code>.
+         *
+         * @throws Exception Thrown if the bucket could not be listed or the files could not be compared.
+         */
+       protected FileComparerResults compare(StorageService service,String bucket,Map<String,File> files) throws Exception {
+                 return compare(service,bucket,files,new HashMap<String,StorageObject>());
+       }
+
+       /** Compares a local file map with the objects in an S3 bucket, returning the S3 object
+         * details in <code>objects</code>.
+         *
+         * @param service Initialised S3 service.
+         * @param bucket  S3 bucket name.
+         * @param files   Local files keyed on the equivalent S3 object key e.g. from <code>buildFileMap</code>.
+         * @param objects Map to which to add the S3 objects in the bucket, keyed on the object key.
+         *
+         * @throws Exception Thrown if the bucket could not be listed or the files could not be compared.
+         */
+       protected FileComparerResults compare(final StorageService service,final String bucket,Map<String,File> files,Map<String,StorageObject> objects) throws Exception {
+                 final FileComparer       fc    = FileComparer.getInstance();
+                 final Map<String,String> paths = new HashMap<String,String>();
+
+                 for (Map.Entry<String,File> entry: files.entrySet()) {
+                     paths.put(entry.getKey(),entry.getValue().getAbsolutePath());
+                 }
+
+                 objects.putAll(retry("listing of '" + bucket + "'",new Callable<Map<String,StorageObject>>() {
+                                          @Override
+                                          public Map<String,StorageObject> call() throws Exception {
+                                                 return fc.buildObjectMap(service,bucket,"",paths,false,false,null,null);
+                                          }
+                                      }));
+
+                 return fc.buildDiscrepancyLists(paths,objects);
+       }
+
+       /** Returns a pipeline that compares a local file map with the objects in an S3 bucket one
+         * listing page at a time. Used in place of <code>compare</code> so that transfers start as
+         * soon as the first page of the listing has been compared.
+         *
+         * @param service Initialised S3 service.
+         * @param bucket  S3 bucket name.
+         */
+       ListingPipeline pipeline(S3Service service,String bucket) {
+                       return new ListingPipeline(this,client(service),service,bucket);
+       }
+
+       /** Returns <code>true</code> if an object is large enough to be downloaded as concurrent byte
+         * ranges.
+         *
+         */
+       protected boolean isRanged(long length) {
+                 return (length >= rangedThreshold) && (length > partSize);
+       }
+
+       /** Downloads a large S3 object as concurrent byte range requests, writing each range directly
+         * to its position in a temporary file (extended to the object length as a sparse file) which is renamed to <code>file</code> once
+         * complete. Each range is retried individually and all ranges are conditional on the object
+         * ETag so that an object that changes during the download fails rather than producing a
+         * corrupt file.
+         *
+         * @param s3     Initialised S3Service.
+         * @param bucket S3 bucket name.
+         * @param key    S3 object key.
+         * @param file   Local file to which to download.
+         *
+         * @throws Exception Thrown if the download fails for any reason. The partially downloaded
+         *                   file is deleted.
+         */
+       protected void download(final S3Service s3,final String bucket,final String key,File file) throws Exception {
+                 StorageObject    details = head(s3,bucket,key);
+                 final long       length  = details.getContentLength();
+                 final String     etag    = details.getETag();
+                 final int        N       = (int) ((length + partSize - 1)/partSize);
+                 File             part    = partial(file,etag);
+                 RandomAccessFile raf     = null;
+                 boolean          ok      = false;
+
+                 if (verbose) {
+                    log("Downloading [" + key + "] in " + N + " ranges");
+                 }
+
+                 discardStale(file,etag);
+
+                 try { part.delete();
+
+                       raf = new RandomAccessFile(part,"rw");
+                       raf.setLength(length);
+
+                       final FileChannel channel = raf.getChannel();
+                       WorkerPool        pool    = new WorkerPool(this,threads,true);
+
+                       try { for (int i=0; i<N; i++) {
+                                 final long start = i * partSize;
+                                 final long end   = Math.min(length,start + partSize) - 1;
+
+                                 pool.submit(key + " [" + start + "-" + end + "]",new WorkerPool.Job() {
+                                                 @Override
+                                                 public void run() throws Exception {
+                                                        S3Object    object   = get(s3,bucket,key,etag,start,end);
+                                                        InputStream in       = throttleDownload(object.getDataInputStream());
+                                                        long        position = start;
+
+                                                        try { position += writer().write(in,channel,start,end - start + 1);
+                                                        } finally {
+                                                            close(in);
+                                                        }
+
+                                                        if (position != end + 1)
+                                                           throw new EOFException("Incomplete range [" + start + "-" + end + "]");
+                                                 }
+                                             });
+                             }
+
+                             pool.join();
+                       } finally {
+                           pool.shutdown();
+                       }
+
+                       writer().written(channel);
+
+                       close(raf);
+
+                       writer().commit(part,file);
+
+                       ok = true;
+                 } finally {
+                     close(raf);
+
+                     if (!ok)
+                        part.delete();
+                 }
+       }
+
+       /** Returns <code>true</code> if an object is large enough to be copied as a multipart upload.
+         * Objects larger than 5GB can only be copied this way.
+         *
+         */
+       protected boolean isMultipart(long length) {
+                 return (length >= multipartThreshold) && (length > MIN_PART_SIZE);
+       }
+
+       /** Copies a large S3 object as a multipart upload, with the parts copied concurrently as 
+         * server-side byte range copies. Each part is retried individually and is conditional on the 
+         * source object ETag. The multipart upload is aborted if any part fails.
+         * <p>
+         * The copy has the same content type as the source object.
+         *
+         * @param s3     Initialised S3Service.
+         * @param source Source S3 bucket name.
+         * @param key    Source S3 object key.
+         * @param bucket Destination S3 bucket name.
+         * @param object Destination S3Object with the key and any metadata for the copy.
+         *
+         * @throws Exception Thrown if the copy fails for any reason.
+         */
+       protected void copy(S3Service s3,final String source,final String key,String bucket,S3Object object) throws Exception {
+                 final StorageClient   client  = client(s3);
+                 StorageObject         details = head(s3,source,key);
+                 final long            length  = details.getContentLength();
+                 final String          etag    = details.getETag();
+                 final long            size    = Math.max(partSize,(length + MAX_PARTS - 1)/MAX_PARTS);
+                 final int             N       = (int) ((length + size - 1)/size);
+                 final MultipartPart[] parts   = new MultipartPart[N];
+
+                 object.setContentType(details.getContentType());
+
+                 final MultipartUpload upload = client.multipartStart(bucket,object);
+
+                 if (verbose) {
+                    log("Copying [" + source + "::" + key + "] in " + N + " parts");
+                 }
+
+                 try { WorkerPool pool = new WorkerPool(this,threads,true);
+
+                       try { for (int i=0; i<N; i++) {
+                                 final int  part  = i + 1;
+                                 final long start = i * size;
+                                 final long end   = Math.min(length,start + size) - 1;
+
+                                 pool.submit(key + " [part " + part + "]",new WorkerPool.Job() {
+                                                 @Override
+                                                 public void run() throws Exception {
+                                                        parts[part - 1] = client.multipartCopy(upload,part,source,key,etag,start,end);
+                                                 }
+                                             });
+                             }
+
+                             pool.join();
+                       } finally {
+                           pool.shutdown();
+                       }
+
+                       client.multipartComplete(upload,Arrays.asList(parts));
+                 } catch(Exception x) {
+                     try { client.multipartAbort(upload);
+                     } catch(Exception y) {
+                         log("Could not abort multipart copy of '" + key + "' [" + y.getMessage() + "]",LogLevel.WARN.getLevel());
+                     }
+
+                     throw x;
+                 }
+       }
+
        /** Uploads a file to an S3 bucket, setting the ACL to the same as the bucket ACL.
          *
          * @param s3          Initialised S3Service.
@@ -220,30 +1254,372 @@ public abstract class AWSTask extends MatchingTask {
          * @throws Exception Thrown if the file upload fails for any reason.
          */
        protected void upload(RestS3Service s3,S3Bucket bucket,AccessControlList acl,boolean cacheNeverExpires,String key,File file,String contentType) throws Exception {
-                 S3Object object = new S3Object(bucket,key);
+                 S3Object object = prepare(bucket,acl,cacheNeverExpires,key,file.getName());
+
+                 object.addMetadata     (Constants.METADATA_JETS3T_LOCAL_FILE_DATE,ServiceUtils.formatIso8601Date(new Date(file.lastModified())));
+                 object.setContentLength(file.length());
+                 object.setContentType  (contentType);
+
+                 ReadAhead prefetcher = readAhead();
+                 byte[]    data       = prefetcher == null ? null : prefetcher.take(file);
+
+                 try { if (!file.isFile() || !file.exists()) {
+                          return;
+                       }
+
+                       if (isMultipart(file.length())) {
+                          upload(s3,bucket,object,file);
+                       } else if (data != null) {
+                          object.setDataInputStream(throttleUpload(new ByteArrayInputStream(data)));
+                          client(s3).put(bucket.getName(),object);
+                       } else if (memoryMapped) {
+                          FileInputStream in     = new FileInputStream(file);
+                          FileRegion      region = null;
 
-                 if (acl != null) {
-                    object.setAcl(acl);
+                          try { if (file.length() <= Integer.MAX_VALUE) {
+                                   region = FileRegion.map(in.getChannel(),0,file.length());
+                                   object.setDataInputStream(throttleUpload(region));
+                                } else {
+                                   object.setDataInputStream(throttleUpload(new FileChannelInputStream(in.getChannel(),0,file.length())));
+                                }
+
+                                client(s3).put(bucket.getName(),object);
+                          } finally {
+                              if (region != null) {
+                                 region.unmap();
+                              }
+
+                              close(in);
+                          }
+                       } else if (maxUploadBytesPerSecond > 0) {
+                          object.setDataInputStream(throttleUpload(new RepeatableFileInputStream(file)));
+                          client(s3).put(bucket.getName(),object);
+                       } else {
+                          object.setDataInputFile(file);
+                          client(s3).put(bucket.getName(),object);
+                       }
+                 } finally {
+                     if (data != null) {
+                        prefetcher.release(data);
+                     }
                  }
+       }
+
+       /** Uploads a stream of unknown length to an S3 bucket, without first writing it to disk.
+         * <p>
+         * The stream is read a part at a time. A stream that fits in a single part is uploaded with a
+         * single PUT, anything larger as a multipart upload with each part uploaded as soon as it has
+         * been read. At most <code>threads</code> parts are held in memory at once, so memory is bounded
+         * by the part size rather than by the size of the stream. Each part is retried individually and
+         * the multipart upload is aborted if any part fails.
+         * <p>
+         * The MD5 hash of the whole stream is only known once the last part has been read, by which
+         * time the multipart upload has been started and its metadata can no longer be set. An object
+         * uploaded as a multipart stream therefore has neither an 'md5-hash' nor a local file date,
+         * and its ETag is not an MD5 hash - a later 'new,changed' comparison against a local file can
+         * only go by the S3 Last-Modified date. Objects that fit in a single part have an MD5 ETag as
+         * usual.
+         *
+         * @param s3                Initialised S3Service.
+         * @param bucket            Initialised S3Bucket.
+         * @param acl               ACL for the uploaded object. May be <code>null</code>.
+         * @param cacheNeverExpires Sets the object Cache-Control to 'never expires' if <code>true</code>.
+         * @param key               S3 object key.
+         * @param name              Resource name, used to set the Content-Encoding of gzipped content.
+         * @param in                Stream to upload. Not closed by this method.
+         * @param length            Length of the stream if known, otherwise a negative value. Only used
+         *                          to size the buffer for streams smaller than a part.
+         * @param contentType       MIME type for content.
+         *
+         * @throws Exception Thrown if the upload fails for any reason.
+         */
+       protected void upload(RestS3Service s3,S3Bucket bucket,AccessControlList acl,boolean cacheNeverExpires,String key,String name,InputStream in,long length,String contentType) throws Exception {
+                 final StorageClient client = client(s3);
+                 final int           size   = (int) Math.min(partSize,Integer.MAX_VALUE - 8);
+                 S3Object            object = prepare(bucket,acl,cacheNeverExpires,key,name);
+                 byte[]              buffer = new byte[(length < 0) || (length >= size) ? size : (int) length + 1];
+                 int                 N      = fill(in,buffer,0);
 
-                 if (cacheNeverExpires) {
-                    object.addMetadata("Cache-Control", "public, max-age=" + MAX_AGE);
+                 object.setContentType(contentType);
+
+                 if ((N == buffer.length) && (N < size)) {
+                    buffer = Arrays.copyOf(buffer,size);
+                    N      = fill(in,buffer,N);
                  }
 
-                 String fileName = file.getName();
-                 if (fileName.lastIndexOf(".gz.") != -1) {
-                     // This is a gizped file, so set the content encoding
-                     object.addMetadata("Content-Encoding", "gzip");
+                 // ... single part ?
+
+                 if (N < size) {
+                    object.setContentLength(N);
+                    object.setDataInputStream(throttleUpload(new ByteArrayInputStream(buffer,0,N)));
+                    client.put(bucket.getName(),object);
+                    return;
                  }
 
-                 object.addMetadata     (Constants.METADATA_JETS3T_LOCAL_FILE_DATE,ServiceUtils.formatIso8601Date(new Date(file.lastModified())));
-                 object.setContentLength(file.length());
-                 object.setContentType  (contentType);
+                 // ... multipart
+
+                 final MultipartUpload              upload  = client.multipartStart(bucket.getName(),object);
+                 final Map<Integer,MultipartPart>   parts   = Collections.synchronizedMap(new TreeMap<Integer,MultipartPart>());
+                 final Semaphore                    permits = new Semaphore(Math.max(1,threads) - 1);
+                 final Queue<byte[]>                free    = new ConcurrentLinkedQueue<byte[]>();
+                 int                                part    = 0;
+
+                 if (verbose) {
+                    log("Uploading [" + key + "] as a multipart stream");
+                 }
+
+                 try { WorkerPool pool = new WorkerPool(this,threads,true);
+
+                       try { while (N > 0) {
+                                   final int    number = ++part;
+                                   final byte[] data   = buffer;
+                                   final int    bytes  = N;
+
+                                   if (number > MAX_PARTS)
+                                      throw new IOException("'" + key + "' has more than " + MAX_PARTS + " parts - increase the part size");
+
+                                   boolean queued = pool.submit(key + " [part " + number + "]",new WorkerPool.Job() {
+                                                                   @Override
+                                                                   public void run() throws Exception {
+                                                                          S3Object slice = new S3Object(upload.getObjectKey());
+
+                                                                          slice.setDataInputStream(throttleUpload(new ByteArrayInputStream(data,0,bytes)));
+                                                                          slice.setContentLength(bytes);
+
+                                                                          parts.put(number,client.multipartPut(upload,number,slice));
+
+                                                                          free.offer(data);
+                                                                          permits.release();
+                                                                   }
+                                                               });
+
+                                   if (!queued || (bytes < size))
+                                      break;
+
+                                   // ... wait for a free buffer
+
+                                   while (!permits.tryAcquire(1,TimeUnit.SECONDS)) {
+                                         if (pool.isAborted())
+                                            break;
+                                   }
+
+                                   if (pool.isAborted())
+                                      break;
+
+                                   buffer = free.poll();
+
+                                   if (buffer == null)
+                                      buffer = new byte[size];
 
-                 if (file.isFile() && file.exists()) {
-                    object.setDataInputFile(file);
-                    s3.putObject(bucket, object);
+                                   N = fill(in,buffer,0);
+                             }
+
+                             pool.join();
+                       } finally {
+                           pool.shutdown();
+                       }
+
+                       client.multipartComplete(upload,new ArrayList<MultipartPart>(parts.values()));
+                 } catch(Exception x) {
+                     try { client.multipartAbort(upload);
+                     } catch(Exception y) {
+                         log("Could not abort multipart upload of '" + key + "' [" + y.getMessage() + "]",LogLevel.WARN.getLevel());
+                     }
+
+                     throw x;
                  }
        }
 
+       /** Initialises an S3Object for upload with the ACL and the Cache-Control and Content-Encoding
+         * metadata.
+         *
+         */
+       S3Object prepare(S3Bucket bucket,AccessControlList acl,boolean cacheNeverExpires,String key,String name) {
+                S3Object object = new S3Object(bucket,key);
+
+                if (acl != null) {
+                   object.setAcl(acl);
+                }
+
+                if (cacheNeverExpires) {
+                   object.addMetadata("Cache-Control", "public, max-age=" + MAX_AGE);
+                }
+
+                if (name.lastIndexOf(".gz.") != -1) {
+                   // This is a gizped file, so set the content encoding
+                   object.addMetadata("Content-Encoding", "gzip");
+                }
+
+                return object;
+       }
+
+       /** Records the MD5 hash of the whole content of a multipart upload in the object's 'md5-hash'
+         * metadata. The ETag of a multipart object is not an MD5 hash, so without it FileComparer
+         * cannot compare the object with the local file and fails on the next 'new,changed' upload
+         * or synchronize. Only the metadata is set - a Content-MD5 header would be applied to the
+         * (empty) body of the request that starts the upload.
+         *
+         */
+       static void md5(S3Object object,byte[] hash) {
+              object.addMetadata(METADATA_MD5,ServiceUtils.toHex(hash));
+       }
+
+       /** Returns the MD5 hash of the whole content of a file.
+         *
+         */
+       static byte[] md5(File file) throws Exception {
+              FileInputStream in = new FileInputStream(file);
+
+              try { return ServiceUtils.computeMD5Hash(in);
+              } finally {
+                  close(in);
+              }
+       }
+
+       /** Reads from a stream until the buffer is full or the stream ends.
+         *
+         * @return Number of bytes in the buffer.
+         */
+       static int fill(InputStream in,byte[] buffer,int offset) throws IOException {
+              int N = offset;
+              int n;
+
+              while ((N < buffer.length) && ((n = in.read(buffer,N,buffer.length - N)) != -1)) {
+                    N += n;
+              }
+
+              return N;
+       }
+
+       /** Uploads a large file as a multipart upload, with the parts uploaded concurrently from slices
+         * of the same file channel. Each part is retried individually and the multipart upload is aborted
+         * if any part fails.
+         * <p>
+         * If the task has an upload journal the upload ID and completed parts are journalled and a
+         * multipart upload left open by an earlier run is resumed, uploading only the missing parts. A
+         * failed upload is then left open to be resumed rather than aborted.
+         *
+         * @param s3     Initialised S3Service.
+         * @param bucket Initialised S3Bucket.
+         * @param object S3Object with the key, ACL and metadata for the uploaded file.
+         * @param file   Local file to upload.
+         *
+         * @throws Exception Thrown if the file upload fails for any reason.
+         */
+       private void upload(RestS3Service s3,S3Bucket bucket,S3Object object,File file) throws Exception {
+               final StorageClient   client = client(s3);
+               final long            length = file.length();
+               final long            size    = Math.max(partSize,(length + MAX_PARTS - 1)/MAX_PARTS);
+               final int             N       = (int) ((length + size - 1)/size);
+               final MultipartPart[] parts   = new MultipartPart[N];
+               final String          key     = object.getKey();
+               final UploadJournal   journal = this.journal;
+               final boolean[]       stale   = { false };
+               UploadJournal.Multipart resumed = journal == null ? null : journal.resume(bucket.getName(),key,file,size);
+               final MultipartUpload upload;
+               FileInputStream       in      = null;
+
+               if (resumed != null) {
+                  upload = new MultipartUpload(resumed.uploadId,bucket.getName(),key);
+
+                  for (MultipartPart part: resumed.parts().values()) {
+                      if ((part.getPartNumber() >= 1) && (part.getPartNumber() <= N))
+                         parts[part.getPartNumber() - 1] = part;
+                  }
+
+                  if (verbose) {
+                     log("Resuming [" + key + "] with " + resumed.parts().size() + " of " + N + " parts uploaded");
+                  }
+               } else {
+                  md5(object,md5(file));
+
+                  upload = client.multipartStart(bucket.getName(),object);
+
+                  if (journal != null)
+                     journal.started(bucket.getName(),key,file,size,upload.getUploadId());
+
+                  if (verbose) {
+                     log("Uploading [" + key + "] in " + N + " parts");
+                  }
+               }
+
+               try { in = new FileInputStream(file);
+
+                     final FileChannel channel = in.getChannel();
+                     WorkerPool        pool    = new WorkerPool(this,threads,true);
+
+                     try { for (int i=0; i<N; i++) {
+                               final int  part   = i + 1;
+                               final long offset = i * size;
+                               final long bytes  = Math.min(size,length - offset);
+
+                               if (parts[i] != null)
+                                  continue;
+
+                               pool.submit(key + " [part " + part + "]",new WorkerPool.Job() {
+                                               @Override
+                                               public void run() throws Exception {
+                                                      S3Object   slice  = new S3Object(key);
+                                                      FileRegion region = null;
+
+                                                      if (memoryMapped && (bytes <= Integer.MAX_VALUE)) {
+                                                         region = FileRegion.map(channel,offset,bytes);
+                                                         slice.setDataInputStream(throttleUpload(region));
+                                                      } else {
+                                                         slice.setDataInputStream(throttleUpload(new FileChannelInputStream(channel,offset,bytes)));
+                                                      }
+
+                                                      slice.setContentLength(bytes);
+
+                                                      try { parts[part - 1] = client.multipartPut(upload,part,slice);
+                                                      } catch(ServiceException x) {
+                                                          stale[0] |= "NoSuchUpload".equals(x.getErrorCode());
+                                                          throw x;
+                                                      } finally {
+                                                          if (region != null) {
+                                                             region.unmap();
+                                                          }
+                                                      }
+
+                                                      if (journal != null)
+                                                         journal.part(upload.getUploadId(),parts[part - 1]);
+                                               }
+                                           });
+                           }
+
+                           pool.join();
+                     } finally {
+                         pool.shutdown();
+                     }
+
+                     try { client.multipartComplete(upload,Arrays.asList(parts));
+                     } catch(ServiceException x) {
+                         stale[0] |= "NoSuchUpload".equals(x.getErrorCode());
+                         throw x;
+                     }
+
+                     if (journal != null)
+                        journal.ended(upload.getUploadId());
+               } catch(Exception x) {
+                   if ((journal != null) && stale[0]) {
+                      journal.ended(upload.getUploadId());
+                      throw x;
+                   }
+
+                   if (journal != null) {
+                      log("Leaving multipart upload of '" + key + "' open to resume [" + x.getMessage() + "]",LogLevel.VERBOSE.getLevel());
+                      throw x;
+                   }
+
+                   try { client.multipartAbort(upload);
+                   } catch(Exception y) {
+                       log("Could not abort multipart upload of '" + key + "' [" + y.getMessage() + "]",LogLevel.WARN.getLevel());
+                   }
+
+                   throw x;
+               } finally {
+                   close(in);
+               }
+       }
+
 }
@@ -0,0 +1,98 @@
+package dak.ant.taskdefs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/** Token bucket bandwidth limit shared by all the concurrent transfers of a task.
+  * <p>
+  * The bucket holds at most one second's worth of tokens and is refilled continuously at
+  * <code>bytesPerSecond</code>. Each read from a throttled stream takes as many tokens as the bytes it
+  * read - a read that finds the bucket empty reserves its tokens anyway and sleeps until they would have
+  * been available, so the combined rate of all the streams converges on the limit without any one
+  * stream being starved. Reads are limited to a tenth of a second's worth of bytes to keep the
+  * transfers smooth.
+  *
+  * @author Tony Seebregts
+  */
+class Bandwidth {
+      // INSTANCE VARIABLES
+
+      private final long bytesPerSecond;
+      private final int  chunk;
+      private double     tokens;
+      private long       timestamp;
+
+      // CONSTRUCTORS
+
+      /** Initialises the bucket full.
+        *
+        * @param bytesPerSecond Maximum transfer rate. Values less than 1 are treated as 1.
+        */
+      Bandwidth(long bytesPerSecond) {
+                this.bytesPerSecond = Math.max(1,bytesPerSecond);
+                this.chunk          = (int) Math.max(1,Math.min(65536,this.bytesPerSecond/10));
+                this.tokens         = this.bytesPerSecond;
+                this.timestamp      = System.nanoTime();
+      }
+
+      // IMPLEMENTATION
+
+      /** Wraps a stream so that reads from it count against this limit. Returns the stream
+        * unchanged if it is <code>null</code>.
+        *
+        */
+      InputStream throttle(InputStream in) {
+                  if (in == null)
+                     return null;
+
+                  return new FilterInputStream(in) {
+                                 @Override
+                                 public int read() throws IOException {
+                                        int b = super.read();
+
+                                        if (b != -1)
+                                           take(1);
+
+                                        return b;
+                                 }
+
+                                 @Override
+                                 public int read(byte[] buffer,int offset,int length) throws IOException {
+                                        int N = super.read(buffer,offset,Math.min(length,chunk));
+
+                                        if (N > 0)
+                                           take(N);
+
+                                        return N;
+                                 }
+                             };
+      }
+
+      /** Takes tokens from the bucket, sleeping until they have been earned if the bucket is
+        * overdrawn.
+        *
+        * @throws InterruptedIOException Thrown if the thread is interrupted while sleeping.
+        */
+      void take(int bytes) throws InterruptedIOException {
+           long delay;
+
+           synchronized(this) {
+                long now = System.nanoTime();
+
+                tokens    = Math.min(bytesPerSecond,tokens + (now - timestamp) * bytesPerSecond / 1e9);
+                timestamp = now;
+                tokens   -= bytes;
+                delay     = tokens < 0 ? (long) (-tokens * 1e9 / bytesPerSecond) : 0;
+           }
+
+           if (delay > 0) {
+              try { Thread.sleep(delay/1000000,(int) (delay % 1000000));
+              } catch(InterruptedException x) {
+                  Thread.currentThread().interrupt();
+                  throw new InterruptedIOException("Interrupted while throttling transfer");
+              }
+           }
+      }
+}
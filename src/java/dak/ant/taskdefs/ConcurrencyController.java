@@ -0,0 +1,206 @@
+package dak.ant.taskdefs;
+
+import org.apache.tools.ant.types.LogLevel;
+import org.jets3t.service.ServiceException;
+
+/** AIMD (additive increase, multiplicative decrease) limit on the number of S3 requests in flight,
+  * shared by all the worker pools of a task.
+  * <p>
+  * The limit starts low and grows by one for each successful request until S3 first pushes back
+  * ('slow start'), after which it grows by roughly one per round of requests. A throttling response
+  * (503 SlowDown et al) cuts the limit by 30%, at most once per round so that a burst of throttled
+  * requests counts as a single congestion event. Requests that take much longer than the running
+  * average, and requests that fail for other reasons, hold the limit where it is.
+  * <p>
+  * A worker that creates a nested pool (e.g. for the parts of a multipart upload) gives up its own
+  * slot from the moment the pool is created until it has been joined, so that the nested requests
+  * cannot be starved by their parent while it queues them.
+  *
+  * @author Tony Seebregts
+  */
+class ConcurrencyController {
+      // CONSTANTS
+
+      private static final int    INITIAL_LIMIT = 2;
+      private static final double DECREASE      = 0.7;
+      private static final double SLOW          = 4.0;
+      private static final double EWMA          = 0.1;
+
+      // INSTANCE VARIABLES
+
+      private final AWSTask task;
+      private final int     max;
+      private double        limit;
+      private int           inFlight  = 0;
+      private int           peak      = 0;
+      private boolean       slowStart = true;
+      private double        latency   = -1;
+      private long          completed = 0;
+      private long          cutAt     = 0;
+      private int           reported;
+
+      private final ThreadLocal<Boolean> holding   = new ThreadLocal<Boolean>() {
+                                                           @Override
+                                                           protected Boolean initialValue() {
+                                                                     return Boolean.FALSE;
+                                                           }
+                                                     };
+
+      private final ThreadLocal<Boolean> suspended = new ThreadLocal<Boolean>() {
+                                                           @Override
+                                                           protected Boolean initialValue() {
+                                                                     return Boolean.FALSE;
+                                                           }
+                                                     };
+
+      // CLASS METHODS
+
+      /** Returns <code>true</code> if an exception is S3 asking the client to slow down.
+        *
+        */
+      static boolean isThrottled(Throwable x) {
+             if (x instanceof RetryPolicy.RetriedException)
+                x = x.getCause();
+
+             if (x instanceof ServiceException) {
+                ServiceException y    = (ServiceException) x;
+                String           code = y.getErrorCode();
+
+                if ((y.getResponseCode() == 503) || (y.getResponseCode() == 429))
+                   return true;
+
+                if ("SlowDown".equals(code) || "Throttling".equals(code) || "RequestLimitExceeded".equals(code))
+                   return true;
+             }
+
+             return false;
+      }
+
+      // CONSTRUCTORS
+
+      /** Initialises the controller with a limit that will never exceed <code>max</code>.
+        *
+        * @param task Owning task. Used for logging.
+        * @param max  Maximum number of requests in flight.
+        */
+      ConcurrencyController(AWSTask task,int max) {
+                            this.task     = task;
+                            this.max      = Math.max(1,max);
+                            this.limit    = Math.min(this.max,INITIAL_LIMIT);
+                            this.reported = (int) limit;
+      }
+
+      // IMPLEMENTATION
+
+      /** Returns the current limit on requests in flight.
+        *
+        */
+      synchronized int limit() {
+                   return (int) limit;
+      }
+
+      /** Returns the highest number of requests that were in flight at once.
+        *
+        */
+      synchronized int peak() {
+                   return peak;
+      }
+
+      /** Waits for a free slot.
+        *
+        * @throws InterruptedException Thrown if the thread was interrupted while waiting.
+        */
+      synchronized void acquire() throws InterruptedException {
+                   while (inFlight >= (int) limit) {
+                         wait();
+                   }
+
+                   inFlight++;
+                   peak = Math.max(peak,inFlight);
+
+                   holding.set  (Boolean.TRUE);
+                   suspended.set(Boolean.FALSE);
+      }
+
+      /** Releases a slot and adjusts the limit from the outcome of the request.
+        *
+        * @param nanos   Time taken by the request. Ignored if the request waited on nested requests.
+        * @param failure Exception thrown by the request, <code>null</code> if it succeeded.
+        */
+      synchronized void release(long nanos,Throwable failure) {
+                   inFlight--;
+                   completed++;
+
+                   holding.set(Boolean.FALSE);
+
+                   if (suspended.get()) {
+                      suspended.set(Boolean.FALSE);
+                   } else if (failure == null) {
+                      boolean slow = (latency > 0) && (nanos > SLOW * latency);
+
+                      latency = latency < 0 ? nanos : (1 - EWMA)*latency + EWMA*nanos;
+
+                      if (!slow) {
+                         limit = slowStart ? limit + 1 : limit + 1.0/limit;
+                      }
+                   } else if (isThrottled(failure) && (completed >= cutAt)) {
+                      slowStart = false;
+                      limit     = Math.max(1,limit * DECREASE);
+                      cutAt     = completed + (long) limit;
+                   }
+
+                   limit = Math.min(max,limit);
+
+                   report();
+                   notifyAll();
+      }
+
+      /** Gives up the current thread's slot (if it has one) while it waits for nested requests.
+        *
+        * @return <code>true</code> if a slot was given up and must be taken back with <code>resume</code>.
+        */
+      synchronized boolean suspend() {
+                   if (!holding.get())
+                      return false;
+
+                   inFlight--;
+
+                   holding.set  (Boolean.FALSE);
+                   suspended.set(Boolean.TRUE);
+                   notifyAll();
+
+                   return true;
+      }
+
+      /** Takes back a slot given up with <code>suspend</code>.
+        *
+        */
+      synchronized void resume() {
+                   boolean interrupted = false;
+
+                   while (inFlight >= (int) limit) {
+                         try { wait();
+                         } catch(InterruptedException x) {
+                             interrupted = true;
+                         }
+                   }
+
+                   inFlight++;
+
+                   holding.set(Boolean.TRUE);
+
+                   if (interrupted)
+                      Thread.currentThread().interrupt();
+      }
+
+      /** Logs the limit whenever it changes to a new whole number.
+        *
+        */
+      private void report() {
+              if ((int) limit != reported) {
+                 reported = (int) limit;
+
+                 task.log("Concurrency: " + reported + " requests",LogLevel.VERBOSE.getLevel());
+              }
+      }
+}
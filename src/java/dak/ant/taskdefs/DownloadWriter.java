@@ -0,0 +1,364 @@
+package dak.ant.taskdefs;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** Writes downloaded S3 objects to local files through a FileChannel.
+  * <p>
+  * Files are extended to the object Content-Length before writing. This only sets the file length -
+  * on most file systems the result is a sparse file and the disk blocks are allocated as the data
+  * is written, so it does not reserve disk space or guard against fragmentation. The response stream
+  * is read directly into a direct buffer sized to the object (64KB to 1MB, in powers of two) so that
+  * each file is written with a few large writes rather than many small ones. Direct buffers are
+  * pooled and reused by all the downloads of the task.
+  * <p>
+  * Downloads are written to a temporary file alongside the destination file and renamed over it
+  * once complete, so that an interrupted download never leaves a truncated file in place. The
+  * temporary file records how much of the object has been received so that a failed or killed
+  * download can be resumed from there with a ranged GET.
+  * <p>
+  * The fsync policy controls durability:
+  * <ul>
+  * <li>never - leaves flushing to the operating system (the default)
+  * <li>file  - forces each file to disk before it is renamed
+  * <li>batch - defers the fsync until <code>batch</code> files have been written (or until the
+  *             task calls <code>sync</code>), then forces the files and their directories together
+  * </ul>
+  *
+  * @author Tony Seebregts
+  */
+class DownloadWriter {
+      // CONSTANTS
+
+      private static final int MIN_BUFFER = 64 * 1024;
+      private static final int MAX_BUFFER = 1024 * 1024;
+      private static final int TRAILER    = 8;
+
+      enum FSYNC {
+           NEVER("never"),
+           FILE ("file"),
+           BATCH("batch");
+
+           private final String code;
+
+           private FSYNC(String code) {
+                   this.code = code;
+           }
+
+           static FSYNC parse(String code) {
+                  for (FSYNC fsync: values()) {
+                      if (fsync.code.equalsIgnoreCase(code))
+                         return fsync;
+                  }
+
+                  return null;
+           }
+      };
+
+      // INSTANCE VARIABLES
+
+      private final FSYNC                            fsync;
+      private final int                              batch;
+      private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+      private List<File>                             pending = new ArrayList<File>();
+
+      // CONSTRUCTORS
+
+      /** Initialises the writer with an fsync policy.
+        *
+        * @param fsync fsync policy.
+        * @param batch Number of files per fsync for the 'batch' policy. Values less than 1 are treated as 1.
+        */
+      DownloadWriter(FSYNC fsync,int batch) {
+                     this.fsync = fsync;
+                     this.batch = Math.max(1,batch);
+      }
+
+      // IMPLEMENTATION
+
+      /** Writes an object data stream (or the remainder of it) to a temporary file.
+        * <p>
+        * If the object length is known the file is extended to the object length plus an 8 byte
+        * trailer which records the number of bytes actually written, updated after each buffer is
+        * written. The trailer is removed once the object is complete, so a temporary file that still
+        * has one is a partial download that can be resumed (see <code>resumable</code>) even if the
+        * task was killed part way through.
+        *
+        * @param in     Object data stream. Not closed by this method.
+        * @param file   Temporary file.
+        * @param offset Position in the object of the first byte of the stream. Bytes before
+        *               <code>offset</code> must already have been written to the file.
+        * @param length Content-Length of the entire object, or a negative value if not known.
+        *
+        * @return Number of bytes written.
+        *
+        * @throws IOException Thrown if the stream could not be read or the file written, or if the
+        *                     stream ended before <code>length</code> bytes.
+        */
+      long write(InputStream in,File file,long offset,long length) throws IOException {
+           RandomAccessFile raf     = new RandomAccessFile(file,"rw");
+           long[]           written = { 0 };
+           boolean          ok      = false;
+
+           try { FileChannel channel = raf.getChannel();
+
+                 if (length < 0) {
+                    raf.setLength(offset);
+                    copy(in,channel,offset,-1,-1,written);
+                    raf.setLength(offset + written[0]);
+                 } else {
+                    raf.setLength(length + TRAILER);
+                    mark(channel,length,offset);
+                    copy(in,channel,offset,length - offset,length,written);
+
+                    if (offset + written[0] != length)
+                       throw new EOFException("Incomplete download of '" + file + "' (" + (offset + written[0]) + " of " + length + " bytes)");
+
+                    raf.setLength(length);
+                 }
+
+                 written(channel);
+
+                 ok = true;
+
+                 return written[0];
+           } finally {
+               if (!ok && (length < 0)) {
+                  try { raf.setLength(offset + written[0]);
+                  } catch(IOException x) {
+                      // ... leave as is - the file will be downloaded again rather than resumed
+                  }
+               }
+
+               AWSTask.close(raf);
+           }
+      }
+
+      /** Returns the number of bytes of an object already downloaded to a temporary file left
+        * by an interrupted <code>write</code>, or 0 if the file does not exist or cannot be resumed.
+        *
+        * @param file   Temporary file.
+        * @param length Content-Length of the object.
+        */
+      static long resumable(File file,long length) {
+             if ((length <= 0) || !file.isFile() || (file.length() != length + TRAILER))
+                return 0;
+
+             try { RandomAccessFile raf = new RandomAccessFile(file,"r");
+
+                   try { raf.seek(length);
+
+                         long written = raf.readLong();
+
+                         return ((written >= 0) && (written <= length)) ? written : 0;
+                   } finally {
+                       AWSTask.close(raf);
+                   }
+             } catch(IOException x) {
+                 return 0;
+             }
+      }
+
+      /** Renames a completely written temporary file over the destination file, atomically where the
+        * file system supports it, and applies the 'batch' fsync policy.
+        *
+        */
+      void commit(File part,File file) throws IOException {
+           try { Files.move(part.toPath(),file.toPath(),StandardCopyOption.ATOMIC_MOVE,StandardCopyOption.REPLACE_EXISTING);
+           } catch(AtomicMoveNotSupportedException x) {
+               Files.move(part.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING);
+           }
+
+           if (fsync == FSYNC.BATCH) {
+              List<File> files = null;
+
+              synchronized(this) {
+                   pending.add(file);
+
+                   if (pending.size() >= batch) {
+                      files   = pending;
+                      pending = new ArrayList<File>();
+                   }
+              }
+
+              if (files != null)
+                 force(files);
+           }
+      }
+
+      /** Writes an object data stream (or a byte range of it) to a file channel at a position. Used
+        * for concurrent ranged downloads into a single file that has already been extended to the
+        * object length.
+        *
+        * @param in       Object data stream. Not closed by this method.
+        * @param channel  Destination file channel.
+        * @param position Position in the file of the first byte of the stream.
+        * @param length   Expected number of bytes (used to size the buffer), or a negative value if not known.
+        *
+        * @return Number of bytes written.
+        */
+      long write(InputStream in,FileChannel channel,long position,long length) throws IOException {
+           long[] written = { 0 };
+
+           copy(in,channel,position,length,-1,written);
+
+           return written[0];
+      }
+
+      /** Applies the 'file' fsync policy to a temporary file that has been completely written. The
+        * channel must still be open.
+        *
+        */
+      void written(FileChannel channel) throws IOException {
+           if (fsync == FSYNC.FILE)
+              channel.force(true);
+      }
+
+      /** Forces any files in the current batch to disk. Called once all the downloads of the
+        * task have finished.
+        *
+        */
+      void sync() throws IOException {
+           List<File> files;
+
+           synchronized(this) {
+                files   = pending;
+                pending = new ArrayList<File>();
+           }
+
+           force(files);
+      }
+
+      /** Copies a stream to a channel through a pooled direct buffer, keeping count in <code>written</code>
+        * of the bytes actually written to the channel so far. If <code>trailer</code> is not negative the
+        * progress trailer at that position is updated after each buffer is written.
+        *
+        */
+      private void copy(InputStream in,FileChannel channel,long position,long length,long trailer,long[] written) throws IOException {
+              ReadableByteChannel source = Channels.newChannel(in);
+              ByteBuffer          buffer = acquire(length);
+
+              try { while (source.read(buffer) != -1) {
+                          if (!buffer.hasRemaining()) {
+                             written[0] += flush(buffer,channel,position + written[0]);
+
+                             if (trailer >= 0)
+                                mark(channel,trailer,position + written[0]);
+                          }
+                    }
+              } finally {
+                  try { written[0] += flush(buffer,channel,position + written[0]);
+
+                        if (trailer >= 0)
+                           mark(channel,trailer,position + written[0]);
+                  } finally {
+                      release(buffer);
+                  }
+              }
+      }
+
+      /** Writes the contents of a buffer to the channel and clears the buffer.
+        *
+        */
+      private static int flush(ByteBuffer buffer,FileChannel channel,long position) throws IOException {
+              int N = 0;
+
+              ((Buffer) buffer).flip();
+
+              while (buffer.hasRemaining()) {
+                    N += channel.write(buffer,position + N);
+              }
+
+              ((Buffer) buffer).clear();
+
+              return N;
+      }
+
+      /** Records the number of bytes of the object written so far in the trailer of a temporary file.
+        *
+        */
+      private static void mark(FileChannel channel,long trailer,long written) throws IOException {
+              ByteBuffer buffer = ByteBuffer.allocate(TRAILER);
+
+              buffer.putLong(written);
+              ((Buffer) buffer).flip();
+
+              while (buffer.hasRemaining()) {
+                    channel.write(buffer,trailer + buffer.position());
+              }
+      }
+
+      /** Forces a list of files, and then their directories, to disk. Files that no longer exist
+        * are skipped - directories that cannot be forced (e.g. on Windows) are ignored.
+        *
+        */
+      private static void force(List<File> files) throws IOException {
+              Set<File> directories = new LinkedHashSet<File>();
+
+              for (File file: files) {
+                  if (file.exists()) {
+                     FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.WRITE);
+
+                     try { channel.force(true);
+                     } finally {
+                         AWSTask.close(channel);
+                     }
+
+                     directories.add(file.getAbsoluteFile().getParentFile());
+                  }
+              }
+
+              for (File directory: directories) {
+                  try { FileChannel channel = FileChannel.open(directory.toPath(),StandardOpenOption.READ);
+
+                        try { channel.force(true);
+                        } finally {
+                            AWSTask.close(channel);
+                        }
+                  } catch(IOException x) {
+                      // ... not supported on this platform
+                  }
+              }
+      }
+
+      /** Returns a pooled direct buffer of a size suited to the object length.
+        *
+        */
+      private ByteBuffer acquire(long length) {
+              int size = MIN_BUFFER;
+
+              while ((size < MAX_BUFFER) && ((length < 0) || (size < length))) {
+                    size <<= 1;
+              }
+
+              for (ByteBuffer buffer: buffers) {
+                  if ((buffer.capacity() >= size) && buffers.remove(buffer)) {
+                     ((Buffer) buffer).clear();
+                     return buffer;
+                  }
+              }
+
+              return ByteBuffer.allocateDirect(size);
+      }
+
+      private void release(ByteBuffer buffer) {
+              buffers.offer(buffer);
+      }
+}
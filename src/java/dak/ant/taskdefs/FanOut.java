@@ -0,0 +1,458 @@
+package dak.ant.taskdefs;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.types.LogLevel;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageService;
+import org.jets3t.service.acl.AccessControlList;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.utils.ServiceUtils;
+
+import dak.ant.storage.StorageClient;
+
+/** Uploads each file (or stream) to several S3 destinations at once, reading it only once.
+  * <p>
+  * The stream is read a buffer at a time - the whole object if it is below the multipart
+  * threshold, otherwise a part at a time - and each buffer is hashed once and then sent to every
+  * destination concurrently before the next buffer is read. Each request is retried individually
+  * according to the task retry policy. A destination that fails is dropped for that object (and
+  * its multipart upload aborted) without affecting the other destinations, and the failure is
+  * counted against the destination so that the task can report it once all the uploads are done.
+  *
+  * @author Tony Seebregts
+  */
+class FanOut {
+      // INNER CLASSES
+
+      /** An upload destination.
+        *
+        */
+      static class Target {
+             final String            bucket;
+             final String            prefix;
+             final StorageService    service;
+             final StorageClient     client;
+             final AccessControlList acl;
+
+             private final AtomicInteger uploaded = new AtomicInteger(0);
+             private final AtomicInteger failed   = new AtomicInteger(0);
+
+             /** Initialises a destination.
+               *
+               * @param bucket  S3 bucket name.
+               * @param prefix  Key prefix.
+               * @param service S3 service for the destination, used to compare the bucket with local files.
+               * @param client  Storage client for the destination.
+               * @param acl     ACL for uploaded objects. May be <code>null</code>.
+               */
+             Target(String bucket,String prefix,StorageService service,StorageClient client,AccessControlList acl) {
+                    this.bucket  = bucket;
+                    this.prefix  = prefix == null ? "" : prefix;
+                    this.service = service;
+                    this.client  = client;
+                    this.acl     = acl;
+             }
+
+             @Override
+             public String toString() {
+                    return bucket + "::" + prefix;
+             }
+      }
+
+      /** Collects the destinations that need each file as the destinations are compared with the local
+        * files, and releases each file for upload as soon as every destination has been compared with it.
+        *
+        */
+      static class Selection {
+             private final Map<File,List<Target>> selected = new HashMap<File,List<Target>>();
+             private final Map<File,Integer>      pending  = new HashMap<File,Integer>();
+
+             /** Initialises the selection.
+               *
+               * @param files   Local files.
+               * @param targets Number of destinations with which each file will be compared.
+               */
+             Selection(Collection<File> files,int targets) {
+                       for (File file: files) {
+                           selected.put(file,new ArrayList<Target>());
+                           pending.put (file,targets);
+                       }
+             }
+
+             /** Records whether a destination needs a file.
+               *
+               * @return <code>true</code> if every destination has now been compared with the file.
+               */
+             synchronized boolean select(File file,Target target,boolean upload) {
+                          Integer N = pending.get(file);
+
+                          if (N == null)
+                             return false;
+
+                          if (upload)
+                             selected.get(file).add(target);
+
+                          if (N > 1) {
+                             pending.put(file,N - 1);
+                             return false;
+                          }
+
+                          pending.remove(file);
+
+                          return true;
+             }
+
+             /** Returns the destinations that need a file.
+               *
+               */
+             synchronized List<Target> targets(File file) {
+                          return selected.get(file);
+             }
+
+             /** Releases the files that were not compared with every destination (e.g. because they are
+               * ignored by the FileComparer) with the destinations found to need them so far.
+               *
+               */
+             synchronized List<File> remaining() {
+                          List<File> files = new ArrayList<File>(pending.keySet());
+
+                          pending.clear();
+
+                          return files;
+             }
+      }
+
+      /** A request to a single destination.
+        *
+        */
+      private interface Request {
+              void call(Target target) throws Exception;
+      }
+
+      // INSTANCE VARIABLES
+
+      private final AWSTask         task;
+      private final List<Target>    targets;
+      private final ExecutorService executor;
+
+      // CONSTRUCTORS
+
+      /** Initialises the fan-out threads.
+        *
+        * @param task    Owning task. Used for logging, the retry policy, part size and throttling.
+        * @param targets Upload destinations.
+        * @param threads Number of objects uploaded at once. The fan-out uses that many threads for
+        *                each destination.
+        */
+      FanOut(AWSTask task,List<Target> targets,int threads) {
+             this.task     = task;
+             this.targets  = new ArrayList<Target>(targets);
+             this.executor = WorkerThreads.executor((task.getTaskName() == null ? "aws" : task.getTaskName()) + "-fanout",Math.max(1,threads) * Math.max(1,targets.size()));
+      }
+
+      // IMPLEMENTATION
+
+      /** Returns the upload destinations.
+        *
+        */
+      List<Target> targets() {
+           return targets;
+      }
+
+      /** Uploads a stream to a set of destinations, reading it once.
+        *
+        * @param targets           Destinations to which to upload.
+        * @param key               Object key, relative to the destination prefix.
+        * @param name              Local file or resource name, used to set the Content-Encoding of gzipped content.
+        * @param in                Stream to upload. Not closed by this method.
+        * @param length            Length of the stream, or a negative value if not known.
+        * @param hash              MD5 hash of the whole stream, stored in the 'md5-hash' metadata of a
+        *                          multipart object. May be <code>null</code> if not known, in which case
+        *                          the object can only be compared by date.
+        * @param modified          Local file modification time, or 0 if not a file.
+        * @param contentType       MIME type for content.
+        * @param cacheNeverExpires Sets the object Cache-Control to 'never expires' if <code>true</code>.
+        *
+        * @return The destinations to which the object was uploaded.
+        *
+        * @throws Exception Thrown if the stream could not be read, in which case any multipart uploads
+        *                   are aborted.
+        */
+      List<Target> upload(List<Target> targets,final String key,final String name,InputStream in,long length,final byte[] hash,final long modified,final String contentType,final boolean cacheNeverExpires) throws Exception {
+           // ... single PUT only if the whole object fits in one buffer, whatever the multipart threshold
+
+           long    size   = Math.max(task.partSize,length < 0 ? 0 : (length + AWSTask.MAX_PARTS - 1)/AWSTask.MAX_PARTS);
+           boolean single = !isMultipart(length);
+           byte[]  buffer = new byte[(int) Math.min(single ? length : size,Integer.MAX_VALUE - 8)];
+           int     N      = AWSTask.fill(in,buffer,0);
+
+           // ... single PUT
+
+           if (single || (N < buffer.length)) {
+              final byte[] data  = buffer;
+              final int    bytes = N;
+              final byte[] md5   = ServiceUtils.computeMD5Hash(new ByteArrayInputStream(data,0,bytes));
+
+              List<Target> uploaded = parallel(targets,key,new Request() {
+                                                  @Override
+                                                  public void call(Target target) throws Exception {
+                                                         S3Object object = object(target,key,name,modified,contentType,cacheNeverExpires);
+
+                                                         object.setContentLength(bytes);
+                                                         object.setMd5Hash(md5);
+                                                         object.setDataInputStream(task.throttleUpload(new ByteArrayInputStream(data,0,bytes)));
+
+                                                         target.client.put(target.bucket,object);
+                                                  }
+                                              });
+
+              for (Target target: uploaded) {
+                  target.uploaded.incrementAndGet();
+              }
+
+              return uploaded;
+           }
+
+           // ... multipart
+
+           final Map<Target,MultipartUpload>     uploads = new LinkedHashMap<Target,MultipartUpload>();
+           final Map<Target,List<MultipartPart>> parts   = new LinkedHashMap<Target,List<MultipartPart>>();
+           int                                   part    = 0;
+
+           try { for (Target target: parallel(targets,key,new Request() {
+                                                  @Override
+                                                  public void call(Target target) throws Exception {
+                                                         S3Object object = object(target,key,name,modified,contentType,cacheNeverExpires);
+
+                                                         if (hash != null)
+                                                            AWSTask.md5(object,hash);
+
+                                                         MultipartUpload upload = target.client.multipartStart(target.bucket,object);
+
+                                                         synchronized(uploads) {
+                                                              uploads.put(target,upload);
+                                                         }
+                                                  }
+                                              })) {
+                     parts.put(target,new ArrayList<MultipartPart>());
+                 }
+
+                 while ((N > 0) && !parts.isEmpty()) {
+                       final int    number = ++part;
+                       final byte[] data   = buffer;
+                       final int    bytes  = N;
+                       final byte[] md5    = ServiceUtils.computeMD5Hash(new ByteArrayInputStream(data,0,bytes));
+
+                       if (number > AWSTask.MAX_PARTS)
+                          throw new IOException("'" + key + "' has more than " + AWSTask.MAX_PARTS + " parts - increase the part size");
+
+                       List<Target> live = new ArrayList<Target>(parts.keySet());
+                       List<Target> ok   = parallel(live,key + " [part " + number + "]",new Request() {
+                                                       @Override
+                                                       public void call(Target target) throws Exception {
+                                                              S3Object slice = new S3Object(key);
+
+                                                              slice.setContentLength(bytes);
+                                                              slice.setMd5Hash(md5);
+                                                              slice.setDataInputStream(task.throttleUpload(new ByteArrayInputStream(data,0,bytes)));
+
+                                                              MultipartPart uploaded = target.client.multipartPut(uploads.get(target),number,slice);
+
+                                                              synchronized(parts) {
+                                                                   parts.get(target).add(uploaded);
+                                                              }
+                                                       }
+                                                   });
+
+                       for (Target target: live) {
+                           if (!ok.contains(target)) {
+                              abort(target,uploads.get(target));
+                              parts.remove(target);
+                           }
+                       }
+
+                       if (N < buffer.length)
+                          break;
+
+                       N = AWSTask.fill(in,buffer,0);
+                 }
+
+                 List<Target> live      = new ArrayList<Target>(parts.keySet());
+                 List<Target> completed = parallel(live,key,new Request() {
+                                                      @Override
+                                                      public void call(Target target) throws Exception {
+                                                             target.client.multipartComplete(uploads.get(target),parts.get(target));
+                                                      }
+                                                  });
+
+                 for (Target target: live) {
+                     if (completed.contains(target))
+                        target.uploaded.incrementAndGet();
+                     else
+                        abort(target,uploads.get(target));
+                 }
+
+                 parts.clear();
+
+                 return completed;
+           } finally {
+               for (Target target: parts.keySet()) {
+                   abort(target,uploads.get(target));
+               }
+           }
+      }
+
+      /** Returns the total number of failed uploads across all destinations.
+        *
+        */
+      int failures() {
+          int N = 0;
+
+          for (Target target: targets) {
+              N += target.failed.get();
+          }
+
+          return N;
+      }
+
+      /** Logs the number of objects uploaded to (and failed for) each destination.
+        *
+        */
+      void report() {
+           for (Target target: targets) {
+               int failed = target.failed.get();
+
+               if (failed == 0)
+                  task.log("Uploaded " + target.uploaded.get() + " objects to '" + target + "'",LogLevel.VERBOSE.getLevel());
+               else
+                  task.log("Uploaded " + target.uploaded.get() + " objects to '" + target + "' (" + failed + " failed)",LogLevel.ERR.getLevel());
+           }
+      }
+
+      /** Stops the fan-out threads.
+        *
+        */
+      void shutdown() {
+           executor.shutdownNow();
+      }
+
+      /** Returns <code>true</code> if a stream of the given length will be uploaded as a multipart
+        * upload i.e. if the length is not known, exceeds the task multipart threshold or does not fit
+        * in a single buffer.
+        *
+        */
+      boolean isMultipart(long length) {
+              return (length < 0) || task.isMultipart(length) || (length > Integer.MAX_VALUE - 8);
+      }
+
+      /** Initialises the S3Object for an upload to a destination.
+        *
+        */
+      private S3Object object(Target target,String key,String name,long modified,String contentType,boolean cacheNeverExpires) {
+              S3Object object = task.prepare(new S3Bucket(target.bucket),target.acl,cacheNeverExpires,target.prefix + key,name);
+
+              if (modified > 0)
+                 object.addMetadata(Constants.METADATA_JETS3T_LOCAL_FILE_DATE,ServiceUtils.formatIso8601Date(new Date(modified)));
+
+              object.setContentType(contentType);
+
+              return object;
+      }
+
+      /** Sends a request to each of a set of destinations concurrently and waits for them all to
+        * finish, retrying each according to the task retry policy. A destination that fails is logged
+        * and counted but does not affect the others.
+        *
+        * @return The destinations for which the request succeeded.
+        */
+      private List<Target> parallel(List<Target> targets,final String description,final Request request) throws InterruptedException {
+              Map<Target,Future<Void>> futures = new LinkedHashMap<Target,Future<Void>>();
+              List<Target>             ok      = new ArrayList<Target>();
+
+              for (final Target target: targets) {
+                  futures.put(target,executor.submit(new Callable<Void>() {
+                                                         @Override
+                                                         public Void call() throws Exception {
+                                                                retry(target,description,request);
+                                                                return null;
+                                                         }
+                                                     }));
+              }
+
+              for (Map.Entry<Target,Future<Void>> entry: futures.entrySet()) {
+                  Target target = entry.getKey();
+
+                  try { entry.getValue().get();
+                        ok.add(target);
+                  } catch(ExecutionException x) {
+                      Throwable cause   = x.getCause() == null ? x : x.getCause();
+                      String    message = cause.getMessage();
+
+                      if ((cause instanceof ServiceException) && (((ServiceException) cause).getErrorMessage() != null))
+                         message = ((ServiceException) cause).getErrorMessage();
+
+                      target.failed.incrementAndGet();
+
+                      task.log("Error uploading '" + description + "' to '" + target + "' [" + message + "]",LogLevel.ERR.getLevel());
+                  }
+              }
+
+              return ok;
+      }
+
+      private void retry(Target target,String description,Request request) throws Exception {
+              RetryPolicy policy  = task.retryPolicy();
+              int         attempt = 0;
+
+              while (true) {
+                    policy.before();
+
+                    try { request.call(target);
+                          policy.success();
+                          return;
+                    } catch(Exception x) {
+                        long delay = policy.failure(x,attempt);
+
+                        if (delay < 0)
+                           throw x;
+
+                        attempt++;
+
+                        task.log("Retrying '" + description + "' to '" + target + "' (" + attempt + " of " + policy.retries() + ") [" + x.getMessage() + "]",LogLevel.VERBOSE.getLevel());
+
+                        Thread.sleep(delay);
+                    }
+              }
+      }
+
+      private void abort(Target target,MultipartUpload upload) {
+              if (upload == null)
+                 return;
+
+              try { target.client.multipartAbort(upload);
+              } catch(Exception x) {
+                  task.log("Could not abort multipart upload of '" + upload.getObjectKey() + "' to '" + target + "' [" + x.getMessage() + "]",LogLevel.WARN.getLevel());
+              }
+      }
+}
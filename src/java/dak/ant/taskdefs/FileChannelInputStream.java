@@ -0,0 +1,89 @@
+package dak.ant.taskdefs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** InputStream over a slice of a FileChannel. Uses positional reads so that any number of
+  * streams can read different slices of the same open channel concurrently e.g. for the parts
+  * of a multipart upload.
+  * <p>
+  * Closing the stream does not close the underlying channel.
+  *
+  * @author Tony Seebregts
+  */
+class FileChannelInputStream extends InputStream {
+      // INSTANCE VARIABLES
+
+      private final FileChannel channel;
+      private final long        end;
+      private long              position;
+      private long              mark;
+
+      // CONSTRUCTORS
+
+      /** Initialises the stream to read <code>length</code> bytes from <code>offset</code>.
+        *
+        * @param channel Open file channel.
+        * @param offset  Position of the first byte of the slice.
+        * @param length  Number of bytes in the slice.
+        */
+      FileChannelInputStream(FileChannel channel,long offset,long length) {
+                             this.channel  = channel;
+                             this.end      = offset + length;
+                             this.position = offset;
+                             this.mark     = offset;
+      }
+
+      // *** InputStream ***
+
+      @Override
+      public int read() throws IOException {
+             byte[] buffer = new byte[1];
+
+             return read(buffer,0,1) == -1 ? -1 : buffer[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] buffer,int offset,int length) throws IOException {
+             if (position >= end)
+                return -1;
+
+             int N = channel.read(ByteBuffer.wrap(buffer,offset,(int) Math.min(length,end - position)),position);
+
+             if (N > 0)
+                position += N;
+
+             return N;
+      }
+
+      @Override
+      public long skip(long N) {
+             long skipped = Math.max(0,Math.min(N,end - position));
+
+             position += skipped;
+
+             return skipped;
+      }
+
+      @Override
+      public int available() {
+             return (int) Math.min(Integer.MAX_VALUE,end - position);
+      }
+
+      @Override
+      public boolean markSupported() {
+             return true;
+      }
+
+      @Override
+      public void mark(int limit) {
+             mark = position;
+      }
+
+      @Override
+      public void reset() {
+             position = mark;
+      }
+}
@@ -0,0 +1,221 @@
+package dak.ant.taskdefs;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/** Hedges idempotent S3 reads (GET and HEAD) to cut tail latency.
+  * <p>
+  * The time to the response headers of every request is recorded, separately for HEAD requests,
+  * GETs of whole objects and ranged GETs since their response times differ. Once there are enough
+  * samples of a kind, a request that has not responded within the 95th percentile of the times
+  * measured so far for that kind is duplicated and whichever response arrives first is used - the
+  * other is discarded. The number of duplicate requests is capped at <code>budget</code> percent of
+  * all requests.
+  * <p>
+  * Requests run on the shared WorkerThreads executor, so a hedger holds no threads of its own.
+  *
+  * @author Tony Seebregts
+  */
+class Hedger {
+      // CONSTANTS
+
+      private static final int    SAMPLES     = 1024;
+      private static final int    MIN_SAMPLES = 32;
+      private static final int    RECALCULATE = 32;
+      private static final double PERCENTILE  = 0.95;
+
+      // INNER CLASSES
+
+      /** Kinds of request, each with its own response time percentile.
+        *
+        */
+      enum KIND {
+           HEAD,
+           GET,
+           RANGE
+      }
+
+      /** Response times of one kind of request.
+        *
+        */
+      private static class Latency {
+              private final long[] samples   = new long[SAMPLES];
+              private int          count     = 0;
+              private long         threshold = -1;
+              private long         requests  = 0;
+      }
+
+      /** An idempotent request that can safely be sent more than once.
+        *
+        */
+      interface Request<T> {
+                /** Sends the request and returns the response.
+                  *
+                  */
+                T call() throws Exception;
+
+                /** Releases the resources held by a response that lost the race e.g. closes the data stream.
+                  *
+                  */
+                void discard(T response);
+      }
+
+      // INSTANCE VARIABLES
+
+      private final int               budget;
+      private final ExecutorService   executor  = WorkerThreads.shared();
+      private final Map<KIND,Latency> latencies = new EnumMap<KIND,Latency>(KIND.class);
+      private long                    requests  = 0;
+      private long                    hedges    = 0;
+
+      // CONSTRUCTORS
+
+      /** Initialises the hedger.
+        *
+        * @param budget Maximum number of hedged requests, as a percentage of all requests.
+        */
+      Hedger(int budget) {
+             this.budget = Math.max(0,budget);
+
+             for (KIND kind: KIND.values()) {
+                 latencies.put(kind,new Latency());
+             }
+      }
+
+      // IMPLEMENTATION
+
+      /** Returns the number of hedged requests sent so far.
+        *
+        */
+      synchronized long hedges() {
+                   return hedges;
+      }
+
+      /** Sends a request, hedging it if it is slow to respond.
+        *
+        * @param kind    Kind of request, for the response time percentile.
+        * @param request Idempotent request.
+        *
+        * @return The first successful response.
+        *
+        * @throws Exception The exception thrown by the request if neither the request nor the hedge succeeded.
+        */
+      <T> T call(KIND kind,final Request<T> request) throws Exception {
+            Latency latency = latencies.get(kind);
+            long    start   = System.nanoTime();
+            long    wait    = threshold(latency);
+
+            if (wait < 0) {
+               T response = request.call();
+
+               record(latency,System.nanoTime() - start);
+
+               return response;
+            }
+
+            CompletionService<T> cs          = new ExecutorCompletionService<T>(executor);
+            Callable<T>          callable    = new Callable<T>() {
+                                                   @Override
+                                                   public T call() throws Exception {
+                                                            return request.call();
+                                                   }
+                                               };
+            int                  outstanding = 1;
+            Future<T>            primary     = cs.submit(callable);
+            Future<T>            hedge       = null;
+            Future<T>            done        = cs.poll(wait,TimeUnit.NANOSECONDS);
+            Exception            failure     = null;
+
+            if ((done == null) && allow()) {
+               hedge = cs.submit(callable);
+               outstanding++;
+            }
+
+            while (outstanding > 0) {
+                  if (done == null)
+                     done = cs.take();
+
+                  outstanding--;
+
+                  try { T response = done.get();
+
+                        record(latency,System.nanoTime() - start);
+
+                        if (outstanding > 0)
+                           discard(request,done == primary ? hedge : primary);
+
+                        return response;
+                  } catch(ExecutionException x) {
+                      if (failure == null)
+                         failure = x.getCause() instanceof Exception ? (Exception) x.getCause() : x;
+                  }
+
+                  done = null;
+            }
+
+            throw failure;
+      }
+
+      /** Discards the response to a request that lost the race, once it arrives.
+        *
+        */
+      private <T> void discard(final Request<T> request,final Future<T> loser) {
+              executor.execute(new Runnable() {
+                                   @Override
+                                   public void run() {
+                                          try { request.discard(loser.get());
+                                          } catch(Exception x) {
+                                          }
+                                   }
+                               });
+      }
+
+      /** Returns <code>true</code> and counts the hedge if it is within the budget.
+        *
+        */
+      private synchronized boolean allow() {
+              if ((hedges + 1) * 100 > requests * budget)
+                 return false;
+
+              hedges++;
+
+              return true;
+      }
+
+      /** Counts a request and returns the current hedging threshold in nanoseconds for its kind, or -1
+        * if there are not yet enough samples.
+        *
+        */
+      private synchronized long threshold(Latency latency) {
+              requests++;
+              latency.requests++;
+
+              if (latency.count < MIN_SAMPLES)
+                 return -1;
+
+              if ((latency.threshold < 0) || (latency.requests % RECALCULATE == 0)) {
+                 long[] sorted = Arrays.copyOf(latency.samples,Math.min(latency.count,SAMPLES));
+
+                 Arrays.sort(sorted);
+
+                 latency.threshold = sorted[(int) (PERCENTILE * (sorted.length - 1))];
+              }
+
+              return latency.threshold;
+      }
+
+      /** Records the response time of a request.
+        *
+        */
+      private synchronized void record(Latency latency,long nanos) {
+              latency.samples[latency.count++ % SAMPLES] = nanos;
+      }
+}
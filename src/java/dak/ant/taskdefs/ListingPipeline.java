@@ -0,0 +1,318 @@
+package dak.ant.taskdefs;
+
+import java.io.File;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.LogLevel;
+
+import org.jets3t.service.StorageService;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.utils.FileComparer;
+import org.jets3t.service.utils.FileComparerResults;
+
+import dak.ant.storage.StorageClient;
+
+/** Compares local files with the objects in an S3 bucket one listing page at a time, so that
+  * transfers can start as soon as the first page has been compared instead of after the whole
+  * bucket has been listed.
+  * <p>
+  * The bucket is listed on a separate thread which hands pages to the comparing thread through
+  * a bounded queue. The listing runs at most <code>QUEUE</code> pages ahead of the comparison and
+  * the comparison is in turn held back by the WorkerPool to which the stage submits transfers, so
+  * only a few pages of the listing are held in memory however large the bucket.
+  * <p>
+  * S3 lists keys in UTF-8 binary order, so a local file is known to be only on the client as soon
+  * as the listing has passed its key.
+  * <p>
+  * If the task has a <code>schedule</code> other than 'listed' the pages are still compared as they
+  * are listed, but the stage is invoked once with the comparison of the whole listing so that the
+  * transfers are ordered across the whole bucket rather than within each page. Transfers then only
+  * start once the listing is complete.
+  *
+  * @author Tony Seebregts
+  */
+class ListingPipeline {
+      // CONSTANTS
+
+      static final int PAGE_SIZE = 1000;
+
+      private static final int        QUEUE = 2;
+      private static final S3Object[] END   = new S3Object[0];
+
+      /** Orders keys by Unicode code point, which is the same as the UTF-8 byte order of an S3 listing.
+        *
+        */
+      static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+                                                      @Override
+                                                      public int compare(String p,String q) {
+                                                             int i = 0;
+                                                             int j = 0;
+
+                                                             while ((i < p.length()) && (j < q.length())) {
+                                                                   int a = p.codePointAt(i);
+                                                                   int b = q.codePointAt(j);
+
+                                                                   if (a != b)
+                                                                      return a < b ? -1 : 1;
+
+                                                                   i += Character.charCount(a);
+                                                                   j += Character.charCount(b);
+                                                             }
+
+                                                             return Integer.compare(p.length() - i,q.length() - j);
+                                                      }
+                                                  };
+
+      // INNER CLASSES
+
+      /** Transfer stage, invoked on the calling thread with the comparison of each listing page.
+        *
+        */
+      interface Stage {
+                /** Invoked once per listing page, in key order, or once for the whole listing if the
+                  * task transfers are scheduled.
+                  *
+                  * @param rs      Comparison of the listed objects with the local files up to the last key on the page.
+                  * @param objects Listed objects keyed on the object key.
+                  *
+                  * @return <code>false</code> to stop the pipeline e.g. if the worker pool has been aborted.
+                  */
+                boolean compared(FileComparerResults rs,Map<String,StorageObject> objects) throws Exception;
+      }
+
+      // INSTANCE VARIABLES
+
+      private final AWSTask        task;
+      private final StorageClient  client;
+      private final StorageService service;
+      private final String         bucket;
+      private final FileComparer   comparer;
+
+      private volatile Throwable   failure;
+
+      // CONSTRUCTORS
+
+      /** Initialises the pipeline for a bucket.
+        *
+        * @param task    Owning task. Used for logging and the retry policy.
+        * @param client  Storage client used to list the bucket.
+        * @param service S3 service used to retrieve object details when an object ETag is not an MD5 hash.
+        * @param bucket  S3 bucket name.
+        */
+      ListingPipeline(AWSTask task,StorageClient client,StorageService service,String bucket) {
+                      this(task,client,service,bucket,FileComparer.getInstance());
+      }
+
+      /** Initialises the pipeline for a bucket with a FileComparer e.g. a SharedFileComparer that
+        * hashes each local file once for several pipelines.
+        *
+        * @param task     Owning task. Used for logging and the retry policy.
+        * @param client   Storage client used to list the bucket.
+        * @param service  S3 service used to retrieve object details when an object ETag is not an MD5 hash.
+        * @param bucket   S3 bucket name.
+        * @param comparer Compares the listed objects with the local files.
+        */
+      ListingPipeline(AWSTask task,StorageClient client,StorageService service,String bucket,FileComparer comparer) {
+                      this.task     = task;
+                      this.client   = client;
+                      this.service  = service;
+                      this.bucket   = bucket;
+                      this.comparer = comparer;
+      }
+
+      // IMPLEMENTATION
+
+      /** Lists the bucket and compares each page with the local files, passing the comparison to
+        * <code>stage</code>. Local files that sort after the last listed object are passed to the
+        * stage as only on the client once the listing is complete. Stops listing if the stage returns
+        * <code>false</code>.
+        *
+        * @param prefix Key prefix to list. The listing is widened to include all the keys in <code>files</code>.
+        * @param files  Local files keyed on the equivalent S3 object key e.g. from <code>buildFileMap</code>.
+        * @param stage  Transfer stage.
+        *
+        * @throws Exception Thrown if the bucket could not be listed or the files could not be compared,
+        *                   or rethrown from the stage.
+        */
+      void run(String prefix,Map<String,File> files,Stage stage) throws Exception {
+           final TreeMap<String,File>      local  = new TreeMap<String,File>(KEY_ORDER);
+           final BlockingQueue<S3Object[]> queue  = new ArrayBlockingQueue<S3Object[]>(QUEUE);
+           final String                    listed;
+           FileComparer                    fc     = comparer;
+           FileComparerResults             merged = null;
+           Map<String,StorageObject>       all    = null;
+
+           if ((task.schedule != null) && (task.schedule != Scheduler.ORDER.LISTED)) {
+              merged = new FileComparerResults();
+              all    = new HashMap<String,StorageObject>();
+           }
+
+           local.putAll(files);
+
+           listed = local.isEmpty() ? prefix : common(common(prefix == null ? "" : prefix,local.firstKey()),local.lastKey());
+
+           // ... list
+
+           ExecutorService lister = WorkerThreads.executor((task.getTaskName() == null ? "aws" : task.getTaskName()) + "-list",1);
+
+           lister.execute(new Runnable() {
+                              @Override
+                              public void run() {
+                                     try { list(listed,queue);
+                                     } catch(InterruptedException x) {
+                                         return;
+                                     } catch(Throwable x) {
+                                         failure = x;
+                                     }
+
+                                     try { queue.put(END);
+                                     } catch(InterruptedException x) {
+                                         Thread.currentThread().interrupt();
+                                     }
+                              }
+                          });
+
+           // ... compare and transfer
+
+           try { S3Object[] page;
+
+                 while ((page = queue.take()) != END) {
+                       SortedMap<String,File>    head    = local.headMap(page[page.length - 1].getKey(),true);
+                       Map<String,String>        paths   = paths(head);
+                       Map<String,StorageObject> objects = lookup(fc,page,paths);
+
+                       FileComparerResults       rs      = fc.buildDiscrepancyLists(paths,objects);
+
+                       head.clear();
+
+                       if (merged != null) {
+                          merge(merged,rs);
+                          all.putAll(objects);
+                       } else if (!stage.compared(rs,objects)) {
+                          return;
+                       }
+                 }
+
+                 if (failure instanceof Exception)
+                    throw (Exception) failure;
+                 else if (failure != null)
+                    throw new BuildException(failure);
+
+                 if (!local.isEmpty()) {
+                    Map<String,StorageObject> objects = new HashMap<String,StorageObject>();
+                    FileComparerResults       rs      = fc.buildDiscrepancyLists(paths(local),objects);
+
+                    if (merged == null) {
+                       stage.compared(rs,objects);
+                    } else {
+                       merge(merged,rs);
+                    }
+                 }
+
+                 if (merged != null)
+                    stage.compared(merged,all);
+           } catch(InterruptedException x) {
+               Thread.currentThread().interrupt();
+               throw new BuildException("Interrupted while listing '" + bucket + "'");
+           } finally {
+               lister.shutdownNow();
+           }
+      }
+
+      /** Lists the bucket a page at a time, retrying each page according to the task retry policy.
+        * Blocks while the queue is full.
+        *
+        */
+      private void list(final String prefix,BlockingQueue<S3Object[]> queue) throws Exception {
+              String after = null;
+              int    count = 0;
+
+              while (true) {
+                    final String next = after;
+                    S3Object[]   page = task.retry("listing of '" + bucket + "'",new Callable<S3Object[]>() {
+                                                       @Override
+                                                       public S3Object[] call() throws Exception {
+                                                              return client.list(bucket,prefix,next,PAGE_SIZE);
+                                                       }
+                                                   });
+
+                    if (page.length == 0)
+                       break;
+
+                    count += page.length;
+                    after  = page[page.length - 1].getKey();
+
+                    queue.put(page);
+              }
+
+              task.log("Listed " + count + " objects in '" + bucket + "'",LogLevel.VERBOSE.getLevel());
+      }
+
+      /** Gets the details of the objects on a listing page that clash with local files (the HEAD
+        * requests FileComparer makes to read the object metadata), retrying according to the task
+        * retry policy.
+        *
+        */
+      private Map<String,StorageObject> lookup(final FileComparer fc,final S3Object[] page,final Map<String,String> paths) throws Exception {
+              return task.retry("listing of '" + bucket + "'",new Callable<Map<String,StorageObject>>() {
+                                    @Override
+                                    public Map<String,StorageObject> call() throws Exception {
+                                           return fc.lookupObjectMetadataForPotentialClashes(service,bucket,"",page,paths,false,false,null,null);
+                                    }
+                                });
+      }
+
+      /** Appends the comparison of a listing page to the comparison of the pages before it. Each key
+        * is on only one page, so the lists are simply concatenated (FileComparerResults.merge also
+        * removes duplicates, which is quadratic in the size of the listing).
+        *
+        */
+      private static void merge(FileComparerResults merged,FileComparerResults rs) {
+              merged.onlyOnServerKeys.addAll(rs.onlyOnServerKeys);
+              merged.updatedOnServerKeys.addAll(rs.updatedOnServerKeys);
+              merged.updatedOnClientKeys.addAll(rs.updatedOnClientKeys);
+              merged.onlyOnClientKeys.addAll(rs.onlyOnClientKeys);
+              merged.alreadySynchronisedKeys.addAll(rs.alreadySynchronisedKeys);
+              merged.alreadySynchronisedLocalPaths.addAll(rs.alreadySynchronisedLocalPaths);
+      }
+
+      /** Converts a file map to the object key to file path map used by FileComparer.
+        *
+        */
+      private static Map<String,String> paths(Map<String,File> files) {
+              Map<String,String> paths = new HashMap<String,String>();
+
+              for (Map.Entry<String,File> entry: files.entrySet()) {
+                  paths.put(entry.getKey(),entry.getValue().getAbsolutePath());
+              }
+
+              return paths;
+      }
+
+      /** Returns the longest common prefix of two keys.
+        *
+        */
+      private static String common(String p,String q) {
+              int N = Math.min(p.length(),q.length());
+              int i = 0;
+
+              while ((i < N) && (p.charAt(i) == q.charAt(i))) {
+                    i++;
+              }
+
+              if ((i > 0) && Character.isHighSurrogate(p.charAt(i - 1)))
+                 i--;
+
+              return p.substring(0,i);
+      }
+}
@@ -0,0 +1,173 @@
+package dak.ant.taskdefs;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/** Asynchronous disk read-ahead for uploads.
+  * <p>
+  * Files are read into memory on a separate, fixed set of platform reader threads (so that the number
+  * of concurrent disk reads is limited even when uploads run on virtual threads) as they are queued for upload,
+  * so that the upload threads send the current files from memory while the next ones are being
+  * read instead of alternating between blocking disk reads and network writes.
+  * <p>
+  * At most <code>files</code> files and <code>bytes</code> bytes are held at once. A file that does
+  * not fit is not prefetched and is uploaded from disk as usual - read-ahead never holds up the
+  * upload queue. A prefetched file is discarded if its length or modification time has changed
+  * by the time it is uploaded.
+  *
+  * @author Tony Seebregts
+  */
+class ReadAhead {
+      // INNER CLASSES
+
+      /** A pending or completed read of a single file.
+        *
+        */
+      private static class Prefetch extends FutureTask<byte[]> {
+                           private final long length;
+                           private final long modified;
+
+                           Prefetch(final File file,final long length,long modified) {
+                                    super(new Callable<byte[]>() {
+                                              @Override
+                                              public byte[] call() throws Exception {
+                                                     byte[]           data = new byte[(int) length];
+                                                     RandomAccessFile f    = new RandomAccessFile(file,"r");
+
+                                                     try { f.readFully(data);
+                                                     } finally {
+                                                         AWSTask.close(f);
+                                                     }
+
+                                                     return data;
+                                              }
+                                          });
+
+                                    this.length   = length;
+                                    this.modified = modified;
+                           }
+      }
+
+      // INSTANCE VARIABLES
+
+      private final int                 files;
+      private final long                bytes;
+      private final ExecutorService     executor;
+      private final Map<File,Prefetch>  prefetched = new ConcurrentHashMap<File,Prefetch>();
+      private long                      reserved   = 0;
+
+      // CONSTRUCTORS
+
+      /** Initialises the reader threads.
+        *
+        * @param name    Thread name prefix.
+        * @param files   Maximum number of files held in memory.
+        * @param bytes   Maximum number of bytes held in memory.
+        * @param readers Number of reader threads.
+        */
+      ReadAhead(String name,int files,long bytes,int readers) {
+                this.files    = Math.max(1,files);
+                this.bytes    = bytes;
+                this.executor = WorkerThreads.fixed(name,Math.max(1,readers));
+      }
+
+      // IMPLEMENTATION
+
+      /** Starts reading a file into memory if there is room for it, otherwise does nothing.
+        *
+        */
+      void prefetch(File file) {
+           long     length   = file.length();
+           long     modified = file.lastModified();
+           Prefetch prefetch;
+
+           if (length > Integer.MAX_VALUE - 8)
+              return;
+
+           synchronized(this) {
+                if ((prefetched.size() >= files) || (reserved + length > bytes) || prefetched.containsKey(file))
+                   return;
+
+                prefetch  = new Prefetch(file,length,modified);
+                reserved += length;
+
+                prefetched.put(file,prefetch);
+           }
+
+           executor.execute(prefetch);
+      }
+
+      /** Returns the prefetched contents of a file, waiting for the read to complete if necessary.
+        * Returns <code>null</code> if the file was not prefetched, could not be read or has changed
+        * since it was read. The caller must <code>release</code> the returned buffer once it has
+        * been uploaded.
+        *
+        */
+      byte[] take(File file) {
+             Prefetch prefetch = prefetched.remove(file);
+
+             if (prefetch == null)
+                return null;
+
+             try { byte[] data = prefetch.get();
+
+                   if ((file.length() == prefetch.length) && (file.lastModified() == prefetch.modified))
+                      return data;
+             } catch(InterruptedException x) {
+                 Thread.currentThread().interrupt();
+             } catch(ExecutionException x) {
+                 // ... read failed - upload from disk instead
+             }
+
+             release(prefetch.length);
+
+             return null;
+      }
+
+      /** Discards a file that was prefetched but will not be uploaded e.g. because it could not be queued,
+        * returning its space to the read-ahead budget. Does nothing if the file was not prefetched.
+        *
+        */
+      void discard(File file) {
+           Prefetch prefetch = prefetched.remove(file);
+
+           if (prefetch != null) {
+              prefetch.cancel(true);
+              release(prefetch.length);
+           }
+      }
+
+      /** Returns the space used by a buffer from <code>take</code> to the read-ahead budget.
+        *
+        */
+      void release(byte[] data) {
+           release(data.length);
+      }
+
+      private synchronized void release(long length) {
+              reserved -= length;
+      }
+
+      /** Stops the reader threads and discards any prefetched files.
+        *
+        */
+      synchronized void shutdown() {
+                   for (Prefetch prefetch: prefetched.values()) {
+                       prefetch.cancel(true);
+                   }
+
+                   for (Runnable pending: executor.shutdownNow()) {
+                       ((Prefetch) pending).cancel(false);
+                   }
+
+                   prefetched.clear();
+
+                   reserved = 0;
+      }
+}
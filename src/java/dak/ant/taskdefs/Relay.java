@@ -0,0 +1,315 @@
+package dak.ant.taskdefs;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.apache.tools.ant.types.LogLevel;
+
+import org.jets3t.service.S3Service;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.utils.ServiceUtils;
+
+import dak.ant.storage.StorageClient;
+
+/** Copies S3 objects between different credentials or endpoints by streaming GET responses from the
+  * source directly into PUT or multipart uploads on the destination, without writing anything to
+  * disk.
+  * <p>
+  * Objects up to the part size are relayed with a single GET and PUT. Larger objects are relayed as
+  * multipart uploads with each part fetched as a ranged GET (conditional on the source ETag) and
+  * uploaded as soon as it has been received. Each part is retried individually. The parts of all the
+  * objects being relayed share one set of part threads, so that at most <code>threads</code> parts
+  * are in transit at once however many multipart objects the task is copying concurrently.
+  * <p>
+  * Every object or part is held in a buffer from a bounded pool while it is in transit, so the memory
+  * used is at most <code>buffers</code> times the part size however many threads are copying.
+  *
+  * @author Tony Seebregts
+  */
+class Relay {
+      // CONSTANTS
+
+      private static final Set<String> IGNORE = new HashSet<String>(Arrays.asList("content-length","content-range","content-md5","accept-ranges","etag","last-modified","date"));
+
+      // INSTANCE VARIABLES
+
+      private final AWSTask         task;
+      private final S3Service       source;
+      private final StorageClient   destination;
+      private final String          bucket;
+      private final String          prefix;
+      private final Semaphore       permits;
+      private final Semaphore       slots;
+      private final ExecutorService executor;
+      private final Queue<byte[]>   buffers = new ConcurrentLinkedQueue<byte[]>();
+
+      // CONSTRUCTORS
+
+      /** Initialises the relay, its buffer pool and the part threads. The relay must be shut down
+        * once all the objects have been relayed.
+        *
+        * @param task        Owning task. Used for logging, source requests, throttling, the part size and
+        *                    the number of part threads.
+        * @param source      S3 service for the source objects.
+        * @param destination Storage client for the destination.
+        * @param bucket      Destination bucket.
+        * @param prefix      Prefix for destination keys.
+        * @param buffers     Maximum number of objects or parts held in memory at once.
+        */
+      Relay(AWSTask task,S3Service source,StorageClient destination,String bucket,String prefix,int buffers) {
+            this.task        = task;
+            this.source      = source;
+            this.destination = destination;
+            this.bucket      = bucket;
+            this.prefix      = prefix == null ? "" : prefix;
+            this.permits     = new Semaphore(Math.max(1,buffers));
+            this.slots       = new Semaphore(Math.max(1,task.threads));
+            this.executor    = WorkerThreads.executor((task.getTaskName() == null ? "aws" : task.getTaskName()) + "-relay",Math.max(1,task.threads));
+      }
+
+      // IMPLEMENTATION
+
+      /** Relays a single object to the destination bucket.
+        *
+        * @param sourceBucket Source bucket.
+        * @param key          Source object key. The destination key is the prefix plus the source key.
+        * @param length       Object length.
+        * @param etag         Object ETag from the listing. May be <code>null</code>.
+        *
+        * @throws Exception Thrown if the object could not be relayed. A multipart upload is aborted.
+        */
+      void copy(String sourceBucket,String key,long length,String etag) throws Exception {
+           long size = Math.min(Math.max(task.partSize,(length + AWSTask.MAX_PARTS - 1)/AWSTask.MAX_PARTS),Integer.MAX_VALUE - 8);
+
+           if (length <= size)
+              relay(sourceBucket,key,length,etag);
+           else
+              relay(sourceBucket,key,length,etag,size);
+      }
+
+      /** Stops the part threads.
+        *
+        */
+      void shutdown() {
+           executor.shutdownNow();
+      }
+
+      /** Relays an object with a single GET and PUT.
+        *
+        */
+      private void relay(String sourceBucket,String key,long length,String etag) throws Exception {
+              byte[] buffer = acquire((int) length);
+
+              try { S3Object    object = task.get(source,sourceBucket,key,etag,null,null);
+                    InputStream in     = task.throttleDownload(object.getDataInputStream());
+                    int         N;
+
+                    try { N = AWSTask.fill(in,buffer,0);
+                    } finally {
+                        AWSTask.close(in);
+                    }
+
+                    if (N != length)
+                       throw new EOFException("Incomplete download of '" + sourceBucket + "::" + key + "' (" + N + " of " + length + " bytes)");
+
+                    S3Object copy = new S3Object(prefix + key);
+
+                    metadata(object,copy);
+
+                    copy.setContentLength(N);
+                    copy.setMd5Hash(ServiceUtils.computeMD5Hash(new ByteArrayInputStream(buffer,0,N)));
+                    copy.setDataInputStream(task.throttleUpload(new ByteArrayInputStream(buffer,0,N)));
+
+                    destination.put(bucket,copy);
+              } finally {
+                  release(buffer);
+              }
+      }
+
+      /** Relays an object as a multipart upload, with each part fetched as a ranged GET. The parts are
+        * relayed on the shared part threads and the first part to fail cancels the others. Each part is
+        * retried on its own, so a part failure is final and the worker pool does not retry the object.
+        *
+        */
+      private void relay(final String sourceBucket,final String key,long length,String etag,long size) throws Exception {
+              StorageObject         details = task.head(source,sourceBucket,key);
+              final String          _etag   = etag == null ? details.getETag() : etag;
+              final int             N       = (int) ((length + size - 1)/size);
+              final MultipartPart[] parts   = new MultipartPart[N];
+              S3Object              object  = new S3Object(prefix + key);
+
+              metadata(details,object);
+
+              final MultipartUpload upload = destination.multipartStart(bucket,object);
+
+              if (task.verbose) {
+                 task.log("Relaying [" + sourceBucket + "::" + key + "] in " + N + " parts");
+              }
+
+              List<Future<MultipartPart>> futures = new ArrayList<Future<MultipartPart>>();
+
+              try { try { for (int i=0; i<N; i++) {
+                              final int  part  = i + 1;
+                              final long start = i * size;
+                              final long end   = Math.min(length,start + size) - 1;
+
+                              futures.add(executor.submit(new Callable<MultipartPart>() {
+                                                              @Override
+                                                              public MultipartPart call() throws Exception {
+                                                                     return retry(key + " [part " + part + "]",upload,part,sourceBucket,key,_etag,start,end);
+                                                              }
+                                                          }));
+                          }
+
+                          for (int i=0; i<N; i++) {
+                              parts[i] = futures.get(i).get();
+                          }
+                    } catch(ExecutionException x) {
+                        throw new RetryPolicy.RetriedException(x.getCause());
+                    } finally {
+                        for (Future<MultipartPart> future: futures) {
+                            future.cancel(true);
+                        }
+                    }
+
+                    destination.multipartComplete(upload,Arrays.asList(parts));
+              } catch(Exception x) {
+                  try { destination.multipartAbort(upload);
+                  } catch(Exception y) {
+                      task.log("Could not abort multipart upload of '" + upload.getObjectKey() + "' [" + y.getMessage() + "]",LogLevel.WARN.getLevel());
+                  }
+
+                  throw x;
+              }
+      }
+
+      /** Relays a single part of a multipart upload on a part thread, retrying it according to the task
+        * retry policy. Waits for a part slot so that at most <code>threads</code> parts are in transit
+        * (the part threads are virtual threads on Java 21 and later).
+        *
+        */
+      private MultipartPart retry(String description,MultipartUpload upload,int part,String sourceBucket,String key,String etag,long start,long end) throws Exception {
+              RetryPolicy policy  = task.retryPolicy();
+              int         attempt = 0;
+
+              slots.acquire();
+
+              try { while (true) {
+                          policy.before();
+
+                          try { MultipartPart relayed = relay(upload,part,sourceBucket,key,etag,start,end);
+
+                                policy.success();
+
+                                return relayed;
+                          } catch(Exception x) {
+                              long delay = policy.failure(x,attempt);
+
+                              if (delay < 0)
+                                 throw x;
+
+                              attempt++;
+
+                              task.log("Retrying '" + description + "' (" + attempt + " of " + policy.retries() + ") [" + x.getMessage() + "]",LogLevel.VERBOSE.getLevel());
+
+                              Thread.sleep(delay);
+                          }
+                    }
+              } finally {
+                  slots.release();
+              }
+      }
+
+      /** Relays a single part of a multipart upload.
+        *
+        */
+      private MultipartPart relay(MultipartUpload upload,int part,String sourceBucket,String key,String etag,long start,long end) throws Exception {
+              int    bytes  = (int) (end - start + 1);
+              byte[] buffer = acquire(bytes);
+
+              try { S3Object    object = task.get(source,sourceBucket,key,etag,start,end);
+                    InputStream in     = task.throttleDownload(object.getDataInputStream());
+                    int         N;
+
+                    try { N = AWSTask.fill(in,buffer,0);
+                    } finally {
+                        AWSTask.close(in);
+                    }
+
+                    if (N != bytes)
+                       throw new EOFException("Incomplete range [" + start + "-" + end + "] of '" + sourceBucket + "::" + key + "'");
+
+                    S3Object slice = new S3Object(upload.getObjectKey());
+
+                    slice.setContentLength(N);
+                    slice.setMd5Hash(ServiceUtils.computeMD5Hash(new ByteArrayInputStream(buffer,0,N)));
+                    slice.setDataInputStream(task.throttleUpload(new ByteArrayInputStream(buffer,0,N)));
+
+                    return destination.multipartPut(upload,part,slice);
+              } finally {
+                  release(buffer);
+              }
+      }
+
+      /** Copies the content headers and user metadata of the source object to the destination object.
+        *
+        */
+      private static void metadata(StorageObject from,S3Object to) {
+              for (Map.Entry<String,Object> entry: from.getModifiableMetadata().entrySet()) {
+                  String name = entry.getKey().toLowerCase(Locale.ROOT);
+
+                  if ((entry.getValue() != null) && !IGNORE.contains(name) && !name.startsWith("x-amz-"))
+                     to.addMetadata(entry.getKey(),entry.getValue().toString());
+              }
+
+              to.setContentType(from.getContentType());
+      }
+
+      /** Takes a buffer of at least <code>size</code> bytes from the pool, waiting for one to be
+        * released if the pool is exhausted. New buffers are at least the part size so that they can
+        * be reused for any object or part. If none of the pooled buffers is large enough one of the
+        * smaller ones is discarded in favour of the new buffer, so that the pool does not grow.
+        *
+        */
+      private byte[] acquire(int size) throws InterruptedException {
+              permits.acquire();
+
+              for (byte[] buffer: buffers) {
+                  if ((buffer.length >= size) && buffers.remove(buffer))
+                     return buffer;
+              }
+
+              // ... discard a smaller buffer rather than let the pool grow
+
+              for (byte[] buffer: buffers) {
+                  if ((buffer.length < size) && buffers.remove(buffer))
+                     break;
+              }
+
+              return new byte[Math.max(size,(int) Math.min(task.partSize,Integer.MAX_VALUE - 8))];
+      }
+
+      private void release(byte[] buffer) {
+              buffers.offer(buffer);
+              permits.release();
+      }
+}
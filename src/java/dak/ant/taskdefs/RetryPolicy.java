@@ -0,0 +1,203 @@
+package dak.ant.taskdefs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.Random;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.NoHttpResponseException;
+import org.apache.tools.ant.BuildException;
+import org.jets3t.service.ServiceException;
+
+/** Retry policy shared by all the S3 requests made by a task.
+  * <p>
+  * Errors are classified as either retryable (S3 server errors, throttling, request timeouts and
+  * network failures i.e. socket errors, timeouts and truncated responses) or fatal (everything else
+  * e.g. access denied, no such key or a local file that cannot be read). Retryable errors
+  * are retried up to <code>retries</code> times with exponential backoff and 'full jitter' i.e. a
+  * random delay of up to 200ms, 400ms, 800ms ... capped at 20 seconds.
+  * <p>
+  * Retries are limited by a budget for the task as a whole: at most 10 retries plus
+  * <code>budget</code> percent of the requests made so far. Once the budget is spent failures are
+  * no longer retried, so that a struggling endpoint is not hit with a storm of retries.
+  * <p>
+  * A circuit breaker trips after 10 consecutive retryable failures, after which requests fail
+  * immediately for 30 seconds. The first request after that is let through as a probe and closes
+  * the circuit again if it succeeds. A fatal error resets the count of consecutive failures.
+  * <p>
+  * The policy replaces the retries of the jets3t HTTP client (see AWSTask.service), so that a request
+  * is not retried both by jets3t and by the task.
+  *
+  * @author Tony Seebregts
+  */
+class RetryPolicy {
+      // CONSTANTS
+
+      private static final long BASE_DELAY        = 200L;
+      private static final long MAX_DELAY         = 20000L;
+      private static final int  FREE_RETRIES      = 10;
+      private static final int  CIRCUIT_THRESHOLD = 10;
+      private static final long CIRCUIT_COOLDOWN  = 30000L;
+
+      // INNER CLASSES
+
+      /** Thrown in place of making a request while the circuit breaker is open.
+        *
+        */
+      @SuppressWarnings("serial")
+      static class CircuitOpenException extends BuildException {
+             CircuitOpenException(String message) {
+                                  super(message);
+             }
+      }
+
+      /** Wraps the failure of a request that has already been retried on its own e.g. a part of a
+        * multipart copy, so that the worker pool job it belongs to is not retried as well (which would
+        * retry the request up to retries x retries times).
+        *
+        */
+      @SuppressWarnings("serial")
+      static class RetriedException extends BuildException {
+             RetriedException(Throwable cause) {
+                              super(cause.getMessage(),cause);
+             }
+      }
+
+      // INSTANCE VARIABLES
+
+      private final int    retries;
+      private final int    budget;
+      private final Random random = new Random();
+
+      private long    requests     = 0;
+      private long    retried      = 0;
+      private int     consecutive  = 0;
+      private long    openUntil    = 0;
+      private boolean probing      = false;
+
+      // CLASS METHODS
+
+      /** Returns <code>true</code> if a failed request may succeed if it is retried.
+        *
+        */
+      static boolean isRetryable(Throwable x) {
+             if (x instanceof BuildException)
+                return false;
+
+             if (x instanceof ServiceException) {
+                ServiceException y      = (ServiceException) x;
+                int              status = y.getResponseCode();
+
+                if (status <= 0)
+                   return isNetworkFailure(y.getCause());
+
+                if ((status >= 500) || (status == 408) || (status == 429))
+                   return true;
+
+                return "RequestTimeout".equals(y.getErrorCode()) || ConcurrencyController.isThrottled(y);
+             }
+
+             return isNetworkFailure(x);
+      }
+
+      /** Returns <code>true</code> if an exception (or its cause) is a network failure i.e. a socket
+        * error, a timeout, a connection closed without a response or a truncated response. Local I/O
+        * errors e.g. a file that does not exist or cannot be read are not network failures.
+        *
+        */
+      private static boolean isNetworkFailure(Throwable x) {
+              for (Throwable y=x; y != null; y=y.getCause()) {
+                  if ((y instanceof SocketException) || (y instanceof EOFException))
+                     return true;
+
+                  if ((y instanceof NoHttpResponseException) || (y instanceof ConnectionClosedException))
+                     return true;
+
+                  if ((y instanceof IOException) && y.getClass().getSimpleName().endsWith("TimeoutException"))
+                     return true;
+              }
+
+              return false;
+      }
+
+      // CONSTRUCTORS
+
+      /** Initialises the policy.
+        *
+        * @param retries Maximum number of times to retry any one request.
+        * @param budget  Retries allowed for the task, as a percentage of the requests made.
+        */
+      RetryPolicy(int retries,int budget) {
+                  this.retries = Math.max(0,retries);
+                  this.budget  = Math.max(0,budget);
+      }
+
+      // IMPLEMENTATION
+
+      /** Returns the maximum number of times to retry any one request.
+        *
+        */
+      int retries() {
+          return retries;
+      }
+
+      /** Checks the circuit breaker before a request is made.
+        *
+        * @throws CircuitOpenException Thrown if the circuit breaker is open.
+        */
+      synchronized void before() throws CircuitOpenException {
+                   requests++;
+
+                   if (openUntil == 0)
+                      return;
+
+                   if ((System.currentTimeMillis() < openUntil) || probing)
+                      throw new CircuitOpenException("S3 is not responding - " + consecutive + " consecutive requests failed");
+
+                   probing = true;
+      }
+
+      /** Records a successful request, closing the circuit breaker if it was open.
+        *
+        */
+      synchronized void success() {
+                   consecutive = 0;
+                   openUntil   = 0;
+                   probing     = false;
+      }
+
+      /** Records a failed request and returns the delay before it should be retried.
+        *
+        * @param x       Exception thrown by the request.
+        * @param attempt Number of times the request has already been retried.
+        *
+        * @return Delay in milliseconds, or -1 if the request should not be retried.
+        */
+      synchronized long failure(Throwable x,int attempt) {
+                   if (!isRetryable(x)) {
+                      consecutive = 0;
+                      probing     = false;
+                      return -1;
+                   }
+
+                   consecutive++;
+
+                   if (probing || (consecutive >= CIRCUIT_THRESHOLD)) {
+                      openUntil = System.currentTimeMillis() + CIRCUIT_COOLDOWN;
+                      probing   = false;
+                   }
+
+                   if ((attempt >= retries) || (openUntil > 0))
+                      return -1;
+
+                   if (retried >= FREE_RETRIES + (requests * budget)/100)
+                      return -1;
+
+                   retried++;
+
+                   long ceiling = Math.min(MAX_DELAY,BASE_DELAY << Math.min(attempt,16));
+
+                   return (long) (random.nextDouble() * ceiling);
+      }
+}
@@ -0,0 +1,114 @@
+package dak.ant.taskdefs;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+import dak.ant.storage.StorageClient;
+
+/** StorageClient wrapper that retries bucket listings and HEAD requests according to the task
+  * retry policy. The jets3t HTTP client retries are disabled when the task retries requests itself
+  * (see AWSTask.service), so requests that are not made on a worker pool e.g. the listing of an
+  * S3Fileset need to be retried here. All other requests are passed straight through - they are
+  * only made by worker pool jobs, which are already retried.
+  *
+  * @author Tony Seebregts
+  */
+class RetryingStorageClient implements StorageClient {
+
+      // INSTANCE VARIABLES
+
+      private final AWSTask       task;
+      private final StorageClient client;
+
+      // CONSTRUCTORS
+
+      /** Wraps the storage client for a task.
+        *
+        */
+      RetryingStorageClient(AWSTask task,StorageClient client) {
+                            this.task   = task;
+                            this.client = client;
+      }
+
+      // *** StorageClient ***
+
+      @Override
+      public S3Object[] list(final String bucket,final String prefix) throws Exception {
+             return task.retry("listing of '" + bucket + "'",new Callable<S3Object[]>() {
+                                   @Override
+                                   public S3Object[] call() throws Exception {
+                                          return client.list(bucket,prefix);
+                                   }
+                               });
+      }
+
+      @Override
+      public S3Object[] list(final String bucket,final String prefix,final String after,final int max) throws Exception {
+             return task.retry("listing of '" + bucket + "'",new Callable<S3Object[]>() {
+                                   @Override
+                                   public S3Object[] call() throws Exception {
+                                          return client.list(bucket,prefix,after,max);
+                                   }
+                               });
+      }
+
+      @Override
+      public StorageObject head(final String bucket,final String key) throws Exception {
+             return task.retry("'" + key + "'",new Callable<StorageObject>() {
+                                   @Override
+                                   public StorageObject call() throws Exception {
+                                          return client.head(bucket,key);
+                                   }
+                               });
+      }
+
+      @Override
+      public S3Object get(String bucket,String key,String etag,Long start,Long end) throws Exception {
+             return client.get(bucket,key,etag,start,end);
+      }
+
+      @Override
+      public void put(String bucket,S3Object object) throws Exception {
+             client.put(bucket,object);
+      }
+
+      @Override
+      public MultipartUpload multipartStart(String bucket,S3Object object) throws Exception {
+             return client.multipartStart(bucket,object);
+      }
+
+      @Override
+      public MultipartPart multipartPut(MultipartUpload upload,int part,S3Object slice) throws Exception {
+             return client.multipartPut(upload,part,slice);
+      }
+
+      @Override
+      public MultipartPart multipartCopy(MultipartUpload upload,int part,String sourceBucket,String sourceKey,String etag,long start,long end) throws Exception {
+             return client.multipartCopy(upload,part,sourceBucket,sourceKey,etag,start,end);
+      }
+
+      @Override
+      public void multipartComplete(MultipartUpload upload,List<MultipartPart> parts) throws Exception {
+             client.multipartComplete(upload,parts);
+      }
+
+      @Override
+      public void multipartAbort(MultipartUpload upload) throws Exception {
+             client.multipartAbort(upload);
+      }
+
+      @Override
+      public void copy(String sourceBucket,String sourceKey,String bucket,S3Object object,boolean replaceMetadata) throws Exception {
+             client.copy(sourceBucket,sourceKey,bucket,object,replaceMetadata);
+      }
+
+      @Override
+      public void delete(String bucket,String key) throws Exception {
+             client.delete(bucket,key);
+      }
+}
@@ -10,15 +10,24 @@ import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.types.LogLevel;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.ServiceException;
-import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.S3Bucket;
 import org.jets3t.service.model.S3Object;
-import org.jets3t.service.security.AWSCredentials;
 
+import dak.ant.storage.StorageClient;
+import dak.ant.types.S3Destination;
 import dak.ant.types.S3File;
 import dak.ant.types.S3FileSet;
+import dak.ant.types.S3Session;
 
 /** Ant task do do bucket-to-bucket copy.
+  * <p>
+  * Objects larger than the <code>multipartThreshold</code> are copied as multipart uploads with 
+  * the parts copied concurrently on the server, which is also the only way to copy objects larger 
+  * than 5GB.
+  * <p>
+  * In 'relay' mode objects are instead streamed from the source to the destination through the
+  * client, which allows copying between accounts, regions or S3 compatible stores that cannot do a
+  * server-side copy. Relay mode is used automatically if the destination has its own S3session.
   *  
   * @author Chris Stewart
   *
@@ -33,8 +42,11 @@ public class S3Copy extends AWSTask {
        // INSTANCE VARIABLES
     
        private String          bucket;
-       private List<S3FileSet> filesets = new ArrayList<S3FileSet>();
-       private boolean         dummyRun = false;
+       private List<S3FileSet> filesets     = new ArrayList<S3FileSet>();
+       private boolean         dummyRun     = false;
+       private boolean         relay        = false;
+       private int             relayBuffers = 0;
+       private S3Destination   destination;
 
        // PROPERTIES
 
@@ -57,6 +69,39 @@ public class S3Copy extends AWSTask {
               return fileset;
        }
 
+       /** Nested element to set the destination bucket and key prefix in place of the <code>bucket</code>
+         * attribute, optionally with its own S3session for a different account or endpoint.
+         * 
+         */
+       public S3Destination createS3Destination() {
+              if (destination != null)
+                 throw new BuildException("Only one S3destination may be specified");
+
+              destination = new S3Destination();
+
+              destination.setProject(getProject());
+
+              return destination;
+       }
+
+       /** Task attribute to copy objects by streaming them through the client (GET from the source and
+         * PUT or multipart upload to the destination) rather than with a server-side copy. Defaults to
+         * <code>false</code>, unless the destination has its own S3session.
+         * 
+         */
+       public void setRelay(boolean relay) { 
+              this.relay = relay;
+       }
+
+       /** Task attribute to set the maximum number of objects or parts held in memory at once while
+         * relaying, which bounds the memory used to <code>relayBuffers</code> times the part size.
+         * Defaults to the number of <code>threads</code>.
+         * 
+         */
+       public void setRelayBuffers(int buffers) { 
+              this.relayBuffers = buffers;
+       }
+
       /** Task attribute to execute the copy as a 'dummy run' to verify that it will do 
          * what is intended. 
          * 
@@ -74,8 +119,12 @@ public class S3Copy extends AWSTask {
        protected void checkParameters() throws BuildException {
                  super.checkParameters();
 
-                 if (bucket == null) {
-                    throw new BuildException("'bucket' task attribute must be set");
+                 if ((bucket == null) && (destination == null)) {
+                    throw new BuildException("'bucket' task attribute or an S3destination must be set");
+                 }
+
+                 if ((bucket != null) && (destination != null)) {
+                    throw new BuildException("Only one of 'bucket' task attribute or S3destination may be set");
                  }
        }
 
@@ -87,14 +136,17 @@ public class S3Copy extends AWSTask {
        public void execute() throws BuildException {
               checkParameters();
 
-              try { AWSCredentials credentials = new AWSCredentials(accessId, secretKey);
-                    S3Service      service     = new RestS3Service(credentials);
-                    Set<S3File>    list        = new ConcurrentSkipListSet<S3File>();
+              try { S3Service   service = service();
+                    Set<S3File> list    = new ConcurrentSkipListSet<S3File>();
+                    String      bucket  = destination == null ? this.bucket : destination.getBucket();
+                    String      prefix  = destination == null ? "" : destination.getPrefix();
+                    S3Session   session = destination == null ? null : destination.getSession();
+                    Relay       relay   = null;
 
                     // ... match on filesets
 
                     for (S3FileSet fileset: filesets) {
-                        Iterator<S3File> ix = fileset.iterator(service); 
+                        Iterator<S3File> ix = fileset.iterator(listing(service)); 
 
                         while (ix.hasNext()) {
                               list.add(ix.next());
@@ -108,19 +160,29 @@ public class S3Copy extends AWSTask {
 
                     // ... copy objects in list
 
-                    log("Copying " + list.size() + " objects");
+                    if (this.relay || (session != null)) {
+                       StorageClient client = session == null ? client(service) : session.getClient();
+
+                       relay = new Relay(this,service,client,bucket,prefix,relayBuffers > 0 ? relayBuffers : threads);
+
+                       log("Relaying " + list.size() + " objects");
+                    } else {
+                       log("Copying " + list.size() + " objects");
+                    }
+
+                    WorkerPool pool = new WorkerPool(this,threads,failOnError);
 
-                    for (S3File file: list) {
-                        S3Object object = new S3Object(file.getKey());
+                    try { for (S3File file: schedule(list)) {
+                              if (!pool.submit(file.getBucket() + "::" + file.getKey(),copyJob(service,relay,bucket,prefix,file)))
+                                 break;
+                          }
 
-                        if (dummyRun) {
-                           log(DUMMY_RUN + " Copied '" + file.getBucket() + "::" + file.getKey() + "' to '" + bucket + "::" + object.getKey() + "'");
-                        } else { 
-                           service.copyObject(file.getBucket(),file.getKey(),bucket,object,true);
+                          pool.join();
+                    } finally {
+                        pool.shutdown();
 
-                           if (verbose)
-                               log("Copied '" + file.getBucket() + "::" + file.getKey() + "' to '" + bucket + "::" + object.getKey() + "'");
-                        }
+                        if (relay != null)
+                           relay.shutdown();
                     }
               } catch(BuildException x) {
                   throw x;
@@ -130,4 +192,50 @@ public class S3Copy extends AWSTask {
                   throw new BuildException(x);
               }
        }
+
+       /** Utility method to create the worker pool job that copies a single S3 object to the
+         * destination bucket.
+         * 
+         * @param service Initialised S3 service.
+         * @param relay   Relay for 'relay' mode, <code>null</code> for a server-side copy.
+         * @param bucket  Destination bucket.
+         * @param prefix  Destination key prefix.
+         * @param file    S3 object to copy.
+         */
+       private WorkerPool.Job copyJob(final S3Service service,final Relay relay,final String bucket,final String prefix,final S3File file) {
+               return new WorkerPool.Job() {
+                          @Override
+                          public void run() throws Exception {
+                                 copy(service,relay,bucket,prefix,file);
+                          }
+                      };
+       }
+
+       /** Utility method to copy a single S3 object to the destination bucket.
+         * 
+         * @param service Initialised S3 service.
+         * @param relay   Relay for 'relay' mode, <code>null</code> for a server-side copy.
+         * @param bucket  Destination bucket.
+         * @param prefix  Destination key prefix.
+         * @param file    S3 object to copy.
+         * 
+         * @throws Exception Thrown if the S3 object could not be copied.
+         */
+       private void copy(S3Service service,Relay relay,String bucket,String prefix,S3File file) throws Exception {
+               S3Object object = new S3Object(prefix + file.getKey());
+
+               if (dummyRun) {
+                  log(DUMMY_RUN + " Copied '" + file.getBucket() + "::" + file.getKey() + "' to '" + bucket + "::" + object.getKey() + "'");
+               } else { 
+                  if (relay != null)
+                     relay.copy(file.getBucket(),file.getKey(),file.length(),file.getETag());
+                  else if (isMultipart(file.length()))
+                     copy(service,file.getBucket(),file.getKey(),bucket,object);
+                  else
+                     client(service).copy(file.getBucket(),file.getKey(),bucket,object,true);
+
+                  if (verbose)
+                      log("Copied '" + file.getBucket() + "::" + file.getKey() + "' to '" + bucket + "::" + object.getKey() + "'");
+               }
+       }
 }
@@ -11,10 +11,8 @@ import java.util.concurrent.ConcurrentSkipListSet;
 import org.apache.tools.ant.BuildException;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.ServiceException;
-import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.S3Bucket;
 import org.jets3t.service.model.S3Object;
-import org.jets3t.service.security.AWSCredentials;
 
 import dak.ant.types.S3File;
 import dak.ant.types.S3FileSet;
@@ -61,14 +59,13 @@ public class S3Delete extends AWSTask {
        public void execute() throws BuildException  {
               checkParameters();
 
-              try { AWSCredentials credentials = new AWSCredentials(accessId, secretKey);
-                    S3Service      service     = new RestS3Service(credentials);
-                    Set<S3File>    list        = new ConcurrentSkipListSet<S3File>();
+              try { S3Service   service = service();
+                    Set<S3File> list    = new ConcurrentSkipListSet<S3File>();
 
                     // ... match on filesets
 
                     for (S3FileSet fileset: filesets) {
-                        Iterator<S3File> ix = fileset.iterator(service); 
+                        Iterator<S3File> ix = fileset.iterator(listing(service)); 
 
                         while (ix.hasNext()) {
                               list.add(ix.next());
@@ -84,31 +81,28 @@ public class S3Delete extends AWSTask {
 
                     Map<String,S3Bucket> buckets = new HashMap<String,S3Bucket>();
                     S3Bucket             bucket;
-                    S3Object             object;
+                    WorkerPool           pool    = new WorkerPool(this,threads,failOnError);
 
                     log("Deleting " + list.size() + " objects");
 
-                    for (S3File file: list) {
-                        // ... re-use buckets just in case they ever become heavyweight objects
+                    try { for (S3File file: schedule(list)) {
+                              // ... re-use buckets just in case they ever become heavyweight objects
 
-                        if ((bucket = buckets.get(file.getBucket())) == null) {
-                           bucket = new S3Bucket(file.getBucket());
+                              if ((bucket = buckets.get(file.getBucket())) == null) {
+                                 bucket = new S3Bucket(file.getBucket());
 
-                           buckets.put(file.getBucket(),bucket);
-                        }
+                                 buckets.put(file.getBucket(),bucket);
+                              }
 
-                        // ... go dog go !
+                              // ... go dog go !
 
-                        object = new S3Object(bucket,file.getKey());
+                              if (!pool.submit(file.getBucket() + "::" + file.getKey(),deleteJob(service,new S3Object(bucket,file.getKey()))))
+                                 break;
+                          }
 
-                        if (dummyRun) {
-                           log(DUMMY_RUN + " Deleted '[" + object.getBucketName() + "][" + object.getKey() + "'");
-                        } else { 
-                            service.deleteObject(object.getBucketName(), object.getKey());
-
-                            if (verbose)
-                                log("Deleted '[" + object.getBucketName() + "][" + object.getKey() + "']");
-                        }
+                          pool.join();
+                    } finally {
+                        pool.shutdown();
                     }
               } catch(BuildException x) {
                   throw x;
@@ -119,4 +113,24 @@ public class S3Delete extends AWSTask {
               }
        }
 
+       /** Utility method to create the worker pool job that deletes a single S3 object.
+         * 
+         * @param service Initialised S3 service.
+         * @param object  S3 object to delete.
+         */
+       private WorkerPool.Job deleteJob(final S3Service service,final S3Object object) {
+               return new WorkerPool.Job() {
+                          @Override
+                          public void run() throws Exception {
+                                 if (dummyRun) {
+                                    log(DUMMY_RUN + " Deleted '[" + object.getBucketName() + "][" + object.getKey() + "'");
+                                 } else { 
+                                     client(service).delete(object.getBucketName(),object.getKey());
+
+                                     if (verbose)
+                                         log("Deleted '[" + object.getBucketName() + "][" + object.getKey() + "']");
+                                 }
+                          }
+                      };
+       }
 }
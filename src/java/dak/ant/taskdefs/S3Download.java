@@ -1,15 +1,16 @@
 package dak.ant.taskdefs;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 
 import org.apache.tools.ant.BuildException;
@@ -18,8 +19,6 @@ import org.apache.tools.ant.types.LogLevel;
 import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.S3Object;
 import org.jets3t.service.model.StorageObject;
-import org.jets3t.service.security.AWSCredentials;
-import org.jets3t.service.utils.FileComparer;
 import org.jets3t.service.utils.FileComparerResults;
 
 import dak.ant.types.S3File;
@@ -40,6 +39,8 @@ public class S3Download extends AWSTask  {
        private boolean downloadChanged = false;
        private boolean dummyRun        = false;
 
+       private final Set<File> directories = Collections.newSetFromMap(new ConcurrentHashMap<File,Boolean>());
+
        // PROPERTIES
 
        /** Sets the directory to which to download files.
@@ -128,62 +129,72 @@ public class S3Download extends AWSTask  {
          * The destination directory and subdirectories are created automatically if necessary.
          * 
          */
-       // TODO: optimise to avoid scanning an S3 bucket twice when downloading new/changed files.
        public void execute() throws BuildException {
               checkParameters();
 
-              AWSCredentials credentials = new AWSCredentials(accessId, secretKey);
+              directories.clear();
 
-              try { RestS3Service service   = new RestS3Service(credentials);
-                    File          directory = new File(dir);
+              try { final RestS3Service service   = service();
+                    final File          directory = new File(dir);
+                    final WorkerPool    pool      = new WorkerPool(this,threads,failOnError);
 
                     // ... process file sets
 
-                    try { for (S3FileSet fileset: filesets) {
-                              Set<S3File> list = new ConcurrentSkipListSet<S3File>();
+                    try { for (final S3FileSet fileset: filesets) {
+                              final int[] count = { 0 };
 
                               // ... download all ?
 
                               if (downloadAll || (!downloadNew && !downloadChanged)) {
-                                 Iterator<S3File> ix = fileset.iterator(service); 
+                                 Set<S3File>      list = new ConcurrentSkipListSet<S3File>();
+                                 Iterator<S3File> ix   = fileset.iterator(listing(service)); 
 
                                  while (ix.hasNext()) {
                                        list.add(ix.next());
                                  }
-                              } else {
-                                 // .... download new/changed
 
-                                  FileComparer               fc      = FileComparer.getInstance();
-                                  Map<String,File>           map     = buildFileMap(new File(dir),fileset.getPrefix());
-                                  Map<String,StorageObject> _objects = fc.buildObjectMap(service,fileset.getBucket(),"",false,null);
-                                  FileComparerResults        rs      = fc.buildDiscrepancyLists(map,_objects, null);
+                                 count[0] = submit(pool,service,directory,list);
+                              } else {
+                                 // .... download new/changed objects as each page of the bucket listing is compared
 
-                                  Iterator<S3File> ix = fileset.iterator(service); 
+                                 Map<String,File> map = buildFileMap(directory,fileset.getPrefix());
 
-                                  while (ix.hasNext()) {
-                                        S3File file = ix.next();
+                                 pipeline(service,fileset.getBucket()).run(fileset.getPrefix(),map,new ListingPipeline.Stage() {
+                                             @Override
+                                             public boolean compared(FileComparerResults rs,Map<String,StorageObject> objects) throws Exception {
+                                                    List<StorageObject> list = new ArrayList<StorageObject>();
 
-                                        if (downloadNew && rs.onlyOnServerKeys.contains(file.getKey())) {
-                                           list.add(file);
-                                        }
+                                                    if (downloadNew) {
+                                                       for (String key: rs.onlyOnServerKeys) {
+                                                           list.add(objects.get(key));
+                                                       }
+                                                    }
 
-                                        if (downloadChanged && rs.updatedOnServerKeys.contains(file.getKey())) {
-                                           list.add(file);
-                                        }
-                                  }
-                              }
+                                                    if (downloadChanged) {
+                                                       for (String key: rs.updatedOnServerKeys) {
+                                                           list.add(objects.get(key));
+                                                       }
+                                                    }
 
-                              log("Downloading " + list.size() + " items to '" + dir + "'");
+                                                    count[0] += submit(pool,service,directory,fileset.select(S3Object.cast(list.toArray(new StorageObject[0]))));
 
-                              for (S3File file: list) {
-                                  fetch(service,file,directory);
+                                                    return !pool.isAborted();
+                                             }
+                                        });
                               }
+
+                              log("Downloading " + count[0] + " items to '" + dir + "'");
                         }
+
+                          pool.join();
+                          syncDownloads();
                     } catch (Exception x) { 
                         if (failOnError)
                            throw x;
 
                         log("Could not retrieve files from Amazon S3 [" + x.getMessage() + "]", LogLevel.ERR.getLevel());
+                    } finally {
+                        pool.shutdown();
                     }
               } catch(BuildException x) {
                   throw x;
@@ -193,6 +204,38 @@ public class S3Download extends AWSTask  {
               }
        }
 
+       /** Queues a list of S3 objects for download in the order set by the task attribute <code>schedule</code>.
+         * 
+         * @return Number of objects queued.
+         */
+       private int submit(WorkerPool pool,RestS3Service service,File directory,Collection<S3File> list) {
+               int count = 0;
+
+               for (S3File file: schedule(list)) {
+                   if (!pool.submit(file.getBucket() + "::" + file.getKey(),fetchJob(service,file,directory)))
+                      break;
+
+                   count++;
+               }
+
+               return count;
+       }
+
+       /** Utility method to create the worker pool job that downloads a single S3 object.
+         * 
+         * @param service   Initialised S3 service.
+         * @param file      S3 object to download.
+         * @param dir       Destination 'root' directory.
+         */
+       private WorkerPool.Job fetchJob(final RestS3Service service,final S3File file,final File dir) {
+               return new WorkerPool.Job() {
+                          @Override
+                          public void run() throws Exception {
+                                 fetch(service,file,dir);
+                          }
+                      };
+       }
+
        /** Utility method to download a single S3 object.
          * 
          * @param service   Initialised S3 service.
@@ -213,34 +256,44 @@ public class S3Download extends AWSTask  {
                   log("Downloading [" + file.getBucket() + "::" + file.getKey() + "][" + file + "]");
                }
 
-               S3Object object = service.getObject(file.getBucket(),file.getKey());
+               if (isRanged(file.length())) {
+                  mkdirs(_file.getParentFile());
+                  download(service,file.getBucket(),file.getKey(),_file);
+                  return;
+               }
+
+               if (resume(service,file.getBucket(),file.getKey(),file.getETag(),file.length(),_file))
+                  return;
+
+               S3Object object = get(service,file.getBucket(),file.getKey(),null,null,null);
 
                if ("application/x-directory".equals(object.getContentType())) {
-                  _file.mkdirs();
+                  close(object.getDataInputStream());
+                  mkdirs(_file);
                   return;
                }
 
-               InputStream  in     = null;
-               OutputStream out    = null;
-               byte[]       buffer = new byte[16384];
-               int          N;
+               InputStream in = null;
 
-               try { _file.getParentFile().mkdirs();
+               try { mkdirs(_file.getParentFile());
 
-                     in = object.getDataInputStream();
-                     out = new FileOutputStream(_file);
+                     in = throttleDownload(object.getDataInputStream());
 
-                     while ((N = in.read(buffer)) != -1) {
-                           out.write(buffer, 0, N);
-                     }
-               } catch(Exception x) {
-                   if (failOnError)
-                      throw x;
-
-                   log("Could not retrieve file '" + file.getBucket() + "::" + file.getKey() + "' from Amazon S3 [" + x.getMessage() + "]", LogLevel.ERR.getLevel());
+                     save(in,object,_file);
                } finally {
                    close(in);
-                   close(out);
+               }
+       }
+
+       /** Creates a download directory and any missing parent directories, once only for each 
+         * directory no matter how many files are downloaded into it.
+         * 
+         * @param directory Directory to create.
+         */
+       private void mkdirs(File directory) {
+               if (!directories.contains(directory)) {
+                  directory.mkdirs();
+                  directories.add(directory);
                }
        }
 
@@ -14,10 +14,8 @@ import java.util.concurrent.ConcurrentSkipListSet;
 import org.apache.tools.ant.BuildException;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.ServiceException;
-import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.S3Bucket;
 import org.jets3t.service.model.S3Object;
-import org.jets3t.service.security.AWSCredentials;
 
 import dak.ant.types.S3File;
 import dak.ant.types.S3FileSet;
@@ -84,14 +82,13 @@ public class S3List extends AWSTask {
 
               PrintWriter writer = null;
 
-              try { AWSCredentials credentials = new AWSCredentials(accessId, secretKey);
-                    S3Service      service     = new RestS3Service(credentials);
-                    Set<S3File>    list        = new ConcurrentSkipListSet<S3File>();
+              try { S3Service   service = service();
+                    Set<S3File> list    = new ConcurrentSkipListSet<S3File>();
 
                     // ... match on filesets
 
                     for (S3FileSet fileset: filesets) {
-                        Iterator<S3File> ix = fileset.iterator(service); 
+                        Iterator<S3File> ix = fileset.iterator(listing(service)); 
 
                         while (ix.hasNext()) {
                               list.add(ix.next());
@@ -1,9 +1,7 @@
 package dak.ant.taskdefs;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.*;
 
 import jakarta.activation.MimetypesFileTypeMap;
@@ -15,14 +13,10 @@ import org.apache.tools.ant.types.LogLevel;
 
 import org.jets3t.service.Constants;
 import org.jets3t.service.acl.AccessControlList;
-import org.jets3t.service.acl.GroupGrantee;
-import org.jets3t.service.acl.Permission;
 import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.S3Bucket;
 import org.jets3t.service.model.S3Object;
 import org.jets3t.service.model.StorageObject;
-import org.jets3t.service.security.AWSCredentials;
-import org.jets3t.service.utils.FileComparer;
 import org.jets3t.service.utils.FileComparerResults;
 
 /** Implements an Ant task with the JetS3t synchronise functionality.
@@ -188,13 +182,11 @@ public class S3Synchronize extends AWSTask {
 
               try { // ... initialise
 
-                    AWSCredentials credentials = new AWSCredentials(accessId, secretKey);
-                    RestS3Service  s3          = new RestS3Service(credentials);
-                    S3Bucket       bucket      = new S3Bucket(this.bucket);
+                    RestS3Service s3     = service();
+                    S3Bucket      bucket = new S3Bucket(this.bucket);
 
                     if (publicRead) {
-                       acl = s3.getBucketAcl(bucket);
-                       acl.grantPermission(GroupGrantee.ALL_USERS,Permission.PERMISSION_READ);
+                       acl = publicReadAcl(s3,bucket);
                     }
 
                     if (mimeTypesFile != null)
@@ -208,7 +200,7 @@ public class S3Synchronize extends AWSTask {
                               DirectoryScanner ds      = fs.getDirectoryScanner(getProject());
                               File             root    = fs.getDir(getProject());
                               String[]         subdirs = ds.getIncludedDirectories();
-                              String[]         files   = ds.getIncludedFiles();
+                              String[]         files   = included(fs,ds);
                               List<File>       list    = new ArrayList<File>();
 
                               for (String dir: subdirs) {
@@ -243,6 +235,10 @@ public class S3Synchronize extends AWSTask {
        }
 
        /** Utility method to upload a list of files from a directory.
+         * <p>
+         * New, updated and reverted files are uploaded concurrently as each page of the bucket listing is
+         * compared. Objects that are only in the bucket are deleted afterwards (in the order set by the task
+         * attribute <code>schedule</code>), and only if all the uploads succeeded.
          * 
          * @param service  Initialise S3 service.
          * @param bucket   Destination bucket. Created automatically if required.
@@ -251,83 +247,97 @@ public class S3Synchronize extends AWSTask {
          * 
          * @throws Exception Thrown if a file in the list could not be uploaded and 'failOnError' is set.
          */
-       private void upload(RestS3Service service,S3Bucket bucket,File root,File[] list) throws Exception {
-               // ... build change list
-
-               FileComparer              fc      = FileComparer.getInstance();
-               Map<String,File>          files   = buildFileMap     (root,list,prefix);
-               Map<String,StorageObject> objects = fc.buildObjectMap(service,bucket.getName(),"",false,null);
-               FileComparerResults       rs      = fc.buildDiscrepancyLists(files, objects);
-               AccessControlList         acl     = publicRead ? this.acl : null;
-
-               // ... synchronize
-
-               for (String key: rs.onlyOnClientKeys) {
-                   File   file        = files.get(key);
-                   String contentType = mimeTypesMap.getContentType(file);
-
-                   if (file.isDirectory())
-                       continue;
-
-                   if (dummyRun)
-                       log(DUMMY_RUN + " Added: [" + key + "]");
-                   else {
-                       if (verbose)
-                          log("Added: " + "[" + key + "][" + file + "]");
-
-                       upload(service,bucket,acl,cacheNeverExpires,key,file,contentType);
-                   }
+       private void upload(final RestS3Service service,final S3Bucket bucket,File root,File[] list) throws Exception {
+               final Map<String,File>  files   = buildFileMap(root,list,prefix);
+               final AccessControlList acl     = publicRead ? this.acl : null;
+               final List<String>      deleted = new ArrayList<String>();
+               final WorkerPool        pool    = new WorkerPool(this,threads,failOnError);
+
+               // ... synchronize each page of the bucket listing as it is compared
+
+               try { pipeline(service,bucket.getName()).run(prefix,files,new ListingPipeline.Stage() {
+                           @Override
+                           public boolean compared(FileComparerResults rs,Map<String,StorageObject> objects) throws Exception {
+                                  for (String key: rs.onlyOnClientKeys) {
+                                      File file = files.get(key);
+
+                                      if (file.isDirectory())
+                                          continue;
+
+                                      if (dummyRun)
+                                          log(DUMMY_RUN + " Added: [" + key + "]");
+                                      else if (!submit(pool,key,file,uploadJob(service,bucket,acl,key,file,"Added: ")))
+                                          return false;
+                                  }
+
+                                  for (String key: rs.updatedOnClientKeys) {
+                                      File file = files.get(key);
+
+                                      if (file.isDirectory())
+                                         continue;
+
+                                      if (dummyRun)
+                                         log(DUMMY_RUN + " Updated: [" + key + "]");
+                                      else if (!submit(pool,key,file,uploadJob(service,bucket,acl,key,file,"Updated: ")))
+                                         return false;
+                                  }
+
+                                  for (String key: rs.updatedOnServerKeys) {
+                                      File file = files.get(key);
+
+                                      if (revert) {
+                                         if (dummyRun)
+                                            log(DUMMY_RUN + " Reverted: [" + key + "]");
+                                         else if (!submit(pool,key,file,uploadJob(service,bucket,acl,key,file,"Reverted: ")))
+                                            return false;
+                                      }
+                                  }
+
+                                  if (delete) {
+                                     for (String key: rs.onlyOnServerKeys) {
+                                         if (key.startsWith(prefix))
+                                            deleted.add(key);
+                                     }
+                                  }
+
+                                  return true;
+                           }
+                     });
+
+                     if (pool.join() > 0) {
+                        log("Not deleting objects from '" + bucket.getName() + "' - some files could not be uploaded",LogLevel.WARN.getLevel());
+                        return;
+                     }
+               } finally {
+                   pool.shutdown();
+                   endPrefetch();
                }
 
-               for (String key: rs.updatedOnClientKeys) {
-                   File   file        = files.get(key);
-                   String contentType = mimeTypesMap.getContentType(file);
-
-                   if (file.isDirectory())
-                      continue;
+               // ... delete only after all uploads have succeeded
 
-                   if (dummyRun)
-                      log(DUMMY_RUN + " Updated: [" + key + "]");
-                   else  {
-                       if (verbose)
-                          log("Updated: " + "[" + key + "][" + file + "]");
-
-                       upload(service,bucket,acl,cacheNeverExpires,key,file,contentType);
-                   }
-               }
-
-               for (String key: rs.onlyOnServerKeys) {
-                   if (!key.startsWith(prefix))
-                   {
-                       continue;
-                   }
-
-                   if (delete) {
-                      if (dummyRun)
-                         log(DUMMY_RUN + " Deleted: [" + key + "]");
-                      else 
-                          delete(service,bucket,key,"Deleted: ");
-                   }
-               }
+               if (!delete)
+                  return;
 
-               for (String key: rs.updatedOnServerKeys) {
-                   File   file        = files.get(key);
-                   String contentType = mimeTypesMap.getContentType(file);
+               WorkerPool deletes = new WorkerPool(this,threads,failOnError);
 
-                   if (revert) {
-                      if (dummyRun)
-                         log(DUMMY_RUN + " Reverted: [" + key + "]");
-                      else {
-                          if (verbose)
-                             log("Reverted: " + "[" + key + "][" + file + "]");
+               try { for (String key: scheduleKeys(deleted)) {
+                         if (dummyRun)
+                            log(DUMMY_RUN + " Deleted: [" + key + "]");
+                         else if (!deletes.submit(key,deleteJob(service,bucket,key,"Deleted: ")))
+                            break;
+                     }
 
-                          upload(service,bucket,acl,cacheNeverExpires,key,file,contentType);
-                      }
-                   }
+                     deletes.join();
+               } finally {
+                   deletes.shutdown();
                }
        }
 
        /** Utility method to download a list of files to a directory.
+         * <p>
+         * New, updated and reverted objects are downloaded concurrently as each page of the bucket listing
+         * is compared. Files that are only in the local directory are deleted afterwards, and only if all the
+         * downloads succeeded.
          * 
          * @param service  Initialises S3 service.
          * @param bucket   Source bucket.
@@ -336,36 +346,65 @@ public class S3Synchronize extends AWSTask {
          * 
          * @throws Exception Thrown if a file in the list could not be uploaded and 'failOnError' is set.
          */
-       private void download(RestS3Service service,S3Bucket bucket,File root,File[] list) throws Exception {
-               // ... build change list
-
-               FileComparer              fc      = FileComparer.getInstance();
-               Map<String,File>          files   = buildFileMap     (root,list,prefix);
-               Map<String,StorageObject> objects = fc.buildObjectMap(service,bucket.getName(),"",false,null);
-               FileComparerResults       rs      = fc.buildDiscrepancyLists(files, objects);
-
-               // ... synchronize
-
-               for (String key: rs.onlyOnServerKeys) {
-                   if (!key.startsWith(prefix))
-                   {
-                       continue;
-                   }
-
-                   if (dummyRun)
-                      log(DUMMY_RUN + " Added: [" + key + "]");
-                   else
-                       download(service,bucket,key,new File(root,key), "Added:");
+       private void download(final RestS3Service service,final S3Bucket bucket,final File root,File[] list) throws Exception {
+               final Map<String,File> files   = buildFileMap(root,list,prefix);
+               final List<String>     deleted = new ArrayList<String>();
+               final WorkerPool       pool    = new WorkerPool(this,threads,failOnError);
+
+               // ... synchronize each page of the bucket listing as it is compared
+
+               try { pipeline(service,bucket.getName()).run(prefix,files,new ListingPipeline.Stage() {
+                           @Override
+                           public boolean compared(FileComparerResults rs,Map<String,StorageObject> objects) throws Exception {
+                                  for (String key: rs.onlyOnServerKeys) {
+                                      if (!key.startsWith(prefix))
+                                      {
+                                          continue;
+                                      }
+
+                                      if (dummyRun)
+                                         log(DUMMY_RUN + " Added: [" + key + "]");
+                                      else if (!pool.submit(key,downloadJob(service,bucket,key,new File(root,key),objects.get(key),"Added:")))
+                                         return false;
+                                  }
+
+                                  for (String key: rs.updatedOnServerKeys) {
+                                      if (dummyRun)
+                                          log(DUMMY_RUN + " Updated: [" + key + "]");
+                                      else if (!pool.submit(key,downloadJob(service,bucket,key,files.get(key),objects.get(key),"Updated: ")))
+                                          return false;
+                                  }
+
+                                  for (String key: rs.updatedOnClientKeys) {
+                                      if (revert) {
+                                         if (dummyRun)
+                                             log(DUMMY_RUN + " Reverted: [" + key + "]");
+                                         else if (!pool.submit(key,downloadJob(service,bucket,key,files.get(key),objects.get(key),"Reverted: ")))
+                                             return false;
+                                      }
+                                  }
+
+                                  deleted.addAll(rs.onlyOnClientKeys);
+
+                                  return true;
+                           }
+                     });
+
+                     int failed = pool.join();
+
+                     syncDownloads();
+
+                     if (failed > 0) {
+                        log("Not deleting local files - some objects could not be downloaded",LogLevel.WARN.getLevel());
+                        return;
+                     }
+               } finally {
+                   pool.shutdown();
                }
 
-               for (String key: rs.updatedOnServerKeys) {
-                   if (dummyRun)
-                       log(DUMMY_RUN + " Updated: [" + key + "]");
-                   else
-                       download(service,bucket,key,files.get(key),"Updated: ");
-               }
+               // ... delete only after all downloads have succeeded
 
-               for (String key: rs.onlyOnClientKeys) {
+               for (String key: deleted) {
                    if (delete) {
                       if (dummyRun)
                           log(DUMMY_RUN + " Deleted: [" + key + "]");
@@ -373,15 +412,84 @@ public class S3Synchronize extends AWSTask {
                           delete(files.get(key),"Deleted: ");
                    }
                }
+       }
 
-               for (String key: rs.updatedOnClientKeys) {
-                   if (revert) {
-                      if (dummyRun)
-                          log(DUMMY_RUN + " Reverted: [" + key + "]");
-                      else
-                          download(service, bucket, key, files.get(key), "Reverted: ");
-                   }
+       /** Starts reading a file ahead (if enabled) and queues its upload.
+         * 
+         * @return <code>false</code> if the upload was not queued because the pool has been aborted.
+         */
+       private boolean submit(WorkerPool pool,String key,File file,WorkerPool.Job job) {
+               prefetch(file);
+
+               if (!pool.submit(key,job)) {
+                  discardPrefetch(file);
+                  return false;
                }
+
+               return true;
+       }
+
+       /** Utility method to create the worker pool job that uploads a single file.
+         * 
+         * @param service Initialised S3Service.
+         * @param bucket  Destination bucket.
+         * @param acl     ACL for uploaded object. May be <code>null</code>.
+         * @param key     S3 object key for uploaded file.
+         * @param file    Local file to upload.
+         * @param action  Action text for log message.
+         */
+       private WorkerPool.Job uploadJob(final RestS3Service service,final S3Bucket bucket,final AccessControlList acl,final String key,final File file,final String action) {
+               return new WorkerPool.Job() {
+                          @Override
+                          public void run() throws Exception {
+                                 if (verbose)
+                                    log(action + "[" + key + "][" + file + "]");
+
+                                 upload(service,bucket,acl,cacheNeverExpires,key,file,mimeTypesMap.getContentType(file));
+                          }
+                      };
+       }
+
+       /** Utility method to create the worker pool job that downloads a single file.
+         * 
+         * @param service Initialised S3Service.
+         * @param bucket  Source bucket.
+         * @param key     S3 object key for file to download.
+         * @param file    Local file to which to download.
+         * @param object  S3 object details from the bucket listing. May be <code>null</code>.
+         * @param action  Action text for log message.
+         */
+       private WorkerPool.Job downloadJob(final RestS3Service service,final S3Bucket bucket,final String key,final File file,final StorageObject object,final String action) {
+               return new WorkerPool.Job() {
+                          @Override
+                          public void run() throws Exception {
+                                 if ((object != null) && isRanged(object.getContentLength())) {
+                                    if (verbose) 
+                                       log(action + "[" + key + "][" + file + "]");
+
+                                    file.getParentFile().mkdirs();
+                                    download(service,bucket.getName(),key,file);
+                                 } else {
+                                    download(service,bucket,key,file,object,action);
+                                 }
+                          }
+                      };
+       }
+
+       /** Utility method to create the worker pool job that deletes a single S3 object.
+         * 
+         * @param service Initialised S3Service.
+         * @param bucket  Bucket containing the object.
+         * @param key     S3 object key to delete.
+         * @param action  Action text for log message.
+         */
+       private WorkerPool.Job deleteJob(final RestS3Service service,final S3Bucket bucket,final String key,final String action) {
+               return new WorkerPool.Job() {
+                          @Override
+                          public void run() throws Exception {
+                                 delete(service,bucket,key,action);
+                          }
+                      };
        }
 
        /** Downloads a file from an S3 bucket.
@@ -389,18 +497,25 @@ public class S3Synchronize extends AWSTask {
          * @param s3     Initialised S3Service.
          * @param key    S3 object key for file to download.
          * @param file  Local file to which to download.
+         * @param details S3 object details from the bucket listing, used to resume an interrupted
+         *                download. May be <code>null</code>.
          * @param action Action text for log message.
          * 
          * @throws Exception Thrown if the file upload fails for any reason.
          */
-       private void download(RestS3Service s3,S3Bucket bucket, String key,File file,String action) throws Exception {
+       private void download(RestS3Service s3,S3Bucket bucket, String key,File file,StorageObject details,String action) throws Exception {
                if (verbose) {
                   log(action + "[" + key + "][" + file + "]");
                }
 
+               // ... resume partial download ?
+
+               if ((details != null) && resume(s3,bucket.getName(),key,details.getETag(),details.getContentLength(),file))
+                  return;
+
                // ... get object
 
-               S3Object object = s3.getObject(bucket.getName(), key);
+               S3Object object = get(s3,bucket.getName(),key,null,null,null);
 
                // ... directory ?
 
@@ -422,22 +537,15 @@ public class S3Synchronize extends AWSTask {
 
                // ... download file
 
-               byte[]       buffer = new byte[16384];
-               InputStream  in     = null;
-               OutputStream out    = null;
-               int          N;
+               InputStream in = null;
 
                try { file.getParentFile().mkdirs();
 
-                     in = object.getDataInputStream();
-                     out = new FileOutputStream(file);
+                     in = throttleDownload(object.getDataInputStream());
 
-                     while ((N = in.read(buffer)) != -1) {
-                           out.write(buffer,0,N);
-                     }
+                     save(in,object,file);
                } finally {
                    close(in);
-                   close(out);
                }
        }
 
@@ -456,7 +564,7 @@ public class S3Synchronize extends AWSTask {
                   log(action + "[" + key + "]");
                }
 
-               s3.deleteObject(bucket, key);
+               client(s3).delete(bucket.getName(),key);
        }
 
        /** Deletes a local file.
@@ -1,9 +1,20 @@
 package dak.ant.taskdefs;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jakarta.activation.MimetypesFileTypeMap;
 
@@ -11,17 +22,20 @@ import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.ant.types.LogLevel;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileProvider;
 
 import org.jets3t.service.acl.AccessControlList;
-import org.jets3t.service.acl.GroupGrantee;
-import org.jets3t.service.acl.Permission;
 import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.S3Bucket;
 import org.jets3t.service.model.StorageObject;
-import org.jets3t.service.security.AWSCredentials;
 import org.jets3t.service.utils.FileComparer;
 import org.jets3t.service.utils.FileComparerResults;
 
+import dak.ant.types.S3Destination;
+import dak.ant.types.S3Session;
+
 /** This class provides basic S3 actions as an Ant task.
   * 
   * @author D. Kavanagh
@@ -29,16 +43,19 @@ import org.jets3t.service.utils.FileComparerResults;
 public class S3Upload extends AWSTask  {
        // INSTANCE VARIABLES
 
-       private String        bucket;
-       private String        prefix            = "";
-       private boolean       publicRead        = false;
-       private List<FileSet> filesets          = new ArrayList<FileSet>();
-       private boolean       cacheNeverExpires = false;
-       private String        mimeTypesFile     = null;
-       private boolean       uploadAll         = false;
-       private boolean       uploadNew         = false;
-       private boolean       uploadChanged     = false;
-       private boolean       dummyRun          = false;
+       private String                   bucket;
+       private String                   prefix            = "";
+       private boolean                  publicRead        = false;
+       private List<FileSet>            filesets          = new ArrayList<FileSet>();
+       private List<ResourceCollection> resources         = new ArrayList<ResourceCollection>();
+       private List<S3Destination>      destinations      = new ArrayList<S3Destination>();
+       private boolean                  cacheNeverExpires = false;
+       private String                   mimeTypesFile     = null;
+       private boolean                  uploadAll         = false;
+       private boolean                  uploadNew         = false;
+       private boolean                  uploadChanged     = false;
+       private boolean                  dummyRun          = false;
+       private File                     journalFile       = null;
 
        private MimetypesFileTypeMap mimeTypesMap;
        private AccessControlList bucketAcl;
@@ -67,6 +84,35 @@ public class S3Upload extends AWSTask  {
               filesets.add(set);
        }
 
+       /** Add method for arbitrary nested Ant resource collections e.g. <code>&lt;concat&gt;</code>,
+         * <code>&lt;zipfileset&gt;</code> or <code>&lt;url&gt;</code>. Each resource is uploaded to the
+         * prefix plus the resource name. Resources that are not files are streamed directly to S3
+         * without first being written to disk - see <code>AWSTask.upload(...,InputStream,...)</code>.
+         * Streamed resources larger than a part carry no MD5 hash, so a later <code>new,changed</code>
+         * upload of a file to the same key compares them by date only.
+         *  
+         */
+       public void add(ResourceCollection resources) {
+              this.resources.add(resources);
+       }
+
+       /** Nested element to add an upload destination. If the task has any destinations each file is read
+         * once and uploaded to all of them concurrently (and to the <code>bucket</code> and
+         * <code>prefix</code> attributes, if set). A failure for one destination does not stop the
+         * upload to the others - failures are reported per destination once all the uploads are done.
+         * A <code>journal</code> records completed files for each destination but does not resume
+         * interrupted multipart uploads.
+         * 
+         */
+       public S3Destination createS3Destination() {
+              S3Destination destination = new S3Destination();
+
+              destination.setProject(getProject());
+              destinations.add(destination);
+
+              return destination;
+       }
+
        /** Sets the access for uploaded S3 objects to 'public read-only'. The default value is <code>false</code> i.e. private.
          * 
          */
@@ -125,6 +171,22 @@ public class S3Upload extends AWSTask  {
               this.dummyRun = enabled;
        }
 
+       /** Optional task attribute that sets a local journal file in which to record the progress of
+         * the upload. If the task fails or is killed part way through, rerunning it with the same
+         * journal skips the files already uploaded (or already found to be up to date) and resumes
+         * any open multipart uploads, without listing the files again. The journal is deleted once
+         * the upload completes without errors.
+         * <p>
+         * With nested <code>s3destination</code> elements only completed files are journalled - a
+         * large file that was part way through a multipart upload when the task stopped is uploaded
+         * again from the start (the part uploads of each file are in step across all the destinations
+         * so that the file is read only once, which a per-destination resume would break).
+         * 
+         */
+       public void setJournal(File journal) {
+              this.journalFile = journal;
+       }
+
        // IMPLEMENTATION
 
        /** Check that the AWS access credentials have been initialised and warns if the upload
@@ -135,8 +197,8 @@ public class S3Upload extends AWSTask  {
        protected void checkParameters() throws BuildException {
                  super.checkParameters();
 
-                 if ((bucket == null) || bucket.matches("\\s*"))
-                    throw new BuildException("'bucket' attribute must be set");
+                 if (((bucket == null) || bucket.matches("\\s*")) && destinations.isEmpty())
+                    throw new BuildException("'bucket' attribute or an S3destination must be set");
 
                  if (filesets == null) {
                     log("No fileset was provided, doing nothing",LogLevel.WARN.getLevel());
@@ -152,70 +214,121 @@ public class S3Upload extends AWSTask  {
 
               try { // ... initialise
 
-                    AWSCredentials credentials = new AWSCredentials(accessId, secretKey);
-                    RestS3Service  service     = new RestS3Service(credentials);
-                    S3Bucket       bucket      = new S3Bucket(this.bucket);
-
-                    if (publicRead) {
-                       bucketAcl = service.getBucketAcl(bucket);
-
-                       bucketAcl.grantPermission(GroupGrantee.ALL_USERS,Permission.PERMISSION_READ);
-                    }
+                    final RestS3Service service = service();
 
                     if (mimeTypesFile != null)
                        mimeTypesMap = new MimetypesFileTypeMap(mimeTypesFile);
                     else
                        mimeTypesMap = new MimetypesFileTypeMap();
 
+                    if (!destinations.isEmpty()) {
+                       fanout(service);
+                       return;
+                    }
+
+                    final S3Bucket bucket = new S3Bucket(this.bucket);
+
+                    if (publicRead) {
+                       bucketAcl = publicReadAcl(service,bucket);
+                    }
+
                     // ... upload
 
-                    for (FileSet fs: filesets) {
-                        try { // ... create upload list
+                    openJournal();
 
-                              DirectoryScanner ds    = fs.getDirectoryScanner(getProject());
-                              File             dir   = fs.getDir(getProject());
-                              String[]         files = ds.getIncludedFiles();
-                              List<File>       list  = new ArrayList<File>();
+                    final WorkerPool pool     = new WorkerPool(this,threads,failOnError);
+                    boolean          complete = false;
+                    boolean          failed   = false;
 
-                              if (uploadAll || (!uploadNew && !uploadChanged)) { 
-                                 for (String file: files) {
-                                     list.add(new File(dir,file));
-                                 }
-                              } else {
-                                 FileComparer              fc      = FileComparer.getInstance();
-                                 Map<String,File>          map     = buildFileMap(dir,files,prefix);
-                                 Map<String,StorageObject> objects = fc.buildObjectMap(service,bucket.getName(),"",false,null);
-                                 FileComparerResults       rs      = fc.buildDiscrepancyLists(map,objects);
-
-                                 if (uploadNew) {
-                                    for (String key: rs.onlyOnClientKeys) {
-                                        list.add(map.get(key));
-                                    }
-                                 }
+                    try { for (FileSet fs: filesets) {
+                              try { // ... create upload list
+
+                                    DirectoryScanner ds    = fs.getDirectoryScanner(getProject());
+                                    final File       dir   = fs.getDir(getProject());
+                                    String[]         files = included(fs,ds);
+                                    final int[]      count = { 0 };
+
+                                    if (uploadAll || (!uploadNew && !uploadChanged)) { 
+                                       List<File> list  = new ArrayList<File>();
+
+                                       for (String file: files) {
+                                           list.add(new File(dir,file));
+                                       }
 
-                                 if (uploadChanged) {
-                                    for (String key: rs.updatedOnClientKeys) {
-                                        list.add(map.get(key));
+                                       count[0] = submit(pool,service,bucket,dir,list);
+                                    } else {
+                                       // ... upload new/changed files as each page of the bucket listing is compared
+
+                                       final Map<String,File> map = buildFileMap(dir,files,prefix);
+
+                                       if (skipJournalled(bucket,map)) {
+                                          pipeline(service,bucket.getName()).run(prefix,map,new ListingPipeline.Stage() {
+                                                      @Override
+                                                      public boolean compared(FileComparerResults rs,Map<String,StorageObject> objects) throws Exception {
+                                                             List<File> list = new ArrayList<File>();
+
+                                                             if (uploadNew) {
+                                                                for (String key: rs.onlyOnClientKeys) {
+                                                                    list.add(map.get(key));
+                                                                }
+                                                             }
+
+                                                             if (uploadChanged) {
+                                                                for (String key: rs.updatedOnClientKeys) {
+                                                                    list.add(map.get(key));
+                                                                }
+                                                             }
+
+                                                             if (journal != null) {
+                                                                journalUnchanged(bucket,map,rs,list);
+                                                             }
+
+                                                             count[0] += submit(pool,service,bucket,dir,list);
+
+                                                             return !pool.isAborted();
+                                                      }
+                                                 });
+                                       }
                                     }
-                                 }
+
+                                    if (count[0] == 0)
+                                        log("Upload list is empty - nothing to do",LogLevel.WARN.getLevel());
+                                    else
+                                        log("Uploading " + count[0] + " files from " + dir.getCanonicalPath());
+                              }  catch (BuildException x) {
+                                  if (failOnError)
+                                     throw x;
+
+                                  failed = true;
+
+                                  log("Error uploading files to Amazon S3 [" + x.getMessage() + "]", LogLevel.ERR.getLevel());
                               }
+                        }
 
-                              // ... upload files
+                          for (ResourceCollection rc: resources) {
+                              int count = 0;
 
-                              if (list.isEmpty())
-                                  log("Upload list is empty - nothing to do",LogLevel.WARN.getLevel());
-                              else {
-                                  log("Uploading " + list.size() + " files from " + dir.getCanonicalPath());
+                              for (Resource resource: rc) {
+                                  if (resource.isDirectory())
+                                     continue;
 
-                                  for (File file: list) { 
-                                      upload(service, bucket, dir, file);
-                                  }
+                                  if (!pool.submit(resource.getName(),uploadJob(service,bucket,resource)))
+                                     break;
+
+                                  count++;
                               }
-                        }  catch (BuildException x) {
-                            if (failOnError)
-                               throw x;
 
-                            log("Error uploading files to Amazon S3 [" + x.getMessage() + "]", LogLevel.ERR.getLevel());
+                              log("Uploading " + count + " resources");
+                          }
+
+                          complete = (pool.join() == 0) && !failed;
+                    } finally {
+                        pool.shutdown();
+                        endPrefetch();
+
+                        if (journal != null) {
+                           journal.close(complete);
+                           journal = null;
                         }
                     }
               } catch (BuildException x) {
@@ -225,6 +338,514 @@ public class S3Upload extends AWSTask  {
               }
        }
 
+       /** Uploads the files selected by the fileset selectors and the nested resources to all the
+         * destinations, reading each file once. For <code>upload="new,changed"</code> each destination
+         * is compared with the local files separately (the destinations concurrently, hashing each
+         * local file once), and each file is then uploaded to just the destinations that need it as
+         * soon as all the destinations have been compared with it.
+         * 
+         */
+       private void fanout(RestS3Service service) throws Exception {
+               List<FanOut.Target> targets = new ArrayList<FanOut.Target>();
+
+               if ((bucket != null) && !bucket.matches("\\s*"))
+                  targets.add(target(service,bucket,prefix,null));
+
+               for (S3Destination destination: destinations) {
+                   targets.add(target(service,destination.getBucket(),destination.getPrefix(),destination.getSession()));
+               }
+
+               openJournal();
+
+               final FanOut     fanout   = new FanOut(this,targets,threads);
+               final WorkerPool pool     = new WorkerPool(this,threads,failOnError);
+               FileComparer     comparer = new SharedFileComparer();
+               boolean          complete = false;
+               boolean          failed   = false;
+
+               try { for (FileSet fs: filesets) {
+                         try { DirectoryScanner ds    = fs.getDirectoryScanner(getProject());
+                               File             dir   = fs.getDir(getProject());
+                               String[]         files = included(fs,ds);
+                               int              count = fanout(fanout,pool,targets,comparer,dir,files);
+
+                               if (count == 0)
+                                   log("Upload list is empty - nothing to do",LogLevel.WARN.getLevel());
+                               else
+                                   log("Uploading " + count + " files from " + dir.getCanonicalPath() + " to " + targets.size() + " destinations");
+                         } catch (BuildException x) {
+                             if (failOnError)
+                                throw x;
+
+                             failed = true;
+
+                             log("Error uploading files to Amazon S3 [" + x.getMessage() + "]", LogLevel.ERR.getLevel());
+                         }
+                     }
+
+                     for (ResourceCollection rc: resources) {
+                         int count = 0;
+
+                         for (Resource resource: rc) {
+                             if (resource.isDirectory() || (resource.getName() == null))
+                                continue;
+
+                             String              name     = resource.getName().replaceAll("\\\\", "/");
+                             FileProvider        provider = resource.as(FileProvider.class);
+                             File                file     = provider == null ? null : provider.getFile();
+                             List<FanOut.Target> list     = new ArrayList<FanOut.Target>();
+
+                             for (FanOut.Target target: targets) {
+                                 if ((file == null) || !isJournalled(target,target.prefix + name,file))
+                                    list.add(target);
+                             }
+
+                             if (list.isEmpty())
+                                continue;
+
+                             if (!pool.submit(resource.getName(),fanoutJob(fanout,list,name,file,resource)))
+                                break;
+
+                             count++;
+                         }
+
+                         log("Uploading " + count + " resources to " + targets.size() + " destinations");
+                     }
+
+                     complete = (pool.join() == 0) && (fanout.failures() == 0) && !failed;
+               } finally {
+                   pool.shutdown();
+                   fanout.shutdown();
+
+                   if (journal != null) {
+                      journal.close(complete);
+                      journal = null;
+                   }
+               }
+
+               fanout.report();
+
+               if (failOnError && (fanout.failures() > 0))
+                  throw new BuildException(fanout.failures() + " uploads failed");
+       }
+
+       /** Compares the files of a fileset with all the destinations concurrently and queues each file for
+         * upload to the destinations that need it as soon as every destination has been compared with it,
+         * rather than once all the destinations have been listed. Each local file is hashed at most once,
+         * however many destinations it is compared with.
+         * <p>
+         * If the task has a <code>schedule</code> other than 'listed' the files are queued once all the
+         * comparisons are done, in scheduled order.
+         * 
+         * @return Number of files queued.
+         */
+       private int fanout(final FanOut fanout,final WorkerPool pool,List<FanOut.Target> targets,final FileComparer comparer,final File dir,final String[] files) throws Exception {
+               List<File> list = new ArrayList<File>();
+
+               for (String file: files) {
+                   list.add(new File(dir,file));
+               }
+
+               final FanOut.Selection selection = new FanOut.Selection(list,targets.size());
+               final List<File>       ready     = (schedule == null) || (schedule == Scheduler.ORDER.LISTED) ? null : new ArrayList<File>();
+               final AtomicInteger    count     = new AtomicInteger(0);
+               ExecutorService        executor  = WorkerThreads.executor((getTaskName() == null ? "aws" : getTaskName()) + "-compare",Math.max(1,targets.size()));
+               List<Future<Void>>     futures   = new ArrayList<Future<Void>>();
+
+               try { for (final FanOut.Target target: targets) {
+                         futures.add(executor.submit(new Callable<Void>() {
+                                                         @Override
+                                                         public Void call() throws Exception {
+                                                                compare(fanout,pool,selection,target,comparer,dir,files,ready,count);
+                                                                return null;
+                                                         }
+                                                     }));
+                     }
+
+                     for (Future<Void> future: futures) {
+                         try { future.get();
+                         } catch(ExecutionException x) {
+                             if (x.getCause() instanceof Exception)
+                                throw (Exception) x.getCause();
+
+                             throw new BuildException(x.getCause());
+                         }
+                     }
+               } finally {
+                   executor.shutdownNow();
+               }
+
+               // ... files not compared with every destination and scheduled files
+
+               List<File> remaining = ready == null ? new ArrayList<File>() : ready;
+
+               remaining.addAll(selection.remaining());
+
+               queue(fanout,pool,selection,dir,schedule(remaining),null,count);
+
+               return count.get();
+       }
+
+       /** Compares a fan-out destination with the files of a fileset, recording in the selection which
+         * files the destination needs and queueing the files for which all the destinations have now
+         * been compared.
+         * 
+         */
+       private void compare(final FanOut fanout,final WorkerPool pool,final FanOut.Selection selection,final FanOut.Target target,FileComparer comparer,final File dir,String[] files,final List<File> ready,final AtomicInteger count) throws Exception {
+               final Map<String,File> map      = buildFileMap(dir,files,target.prefix);
+               List<File>             released = new ArrayList<File>();
+
+               if (uploadAll || (!uploadNew && !uploadChanged)) {
+                  for (Map.Entry<String,File> entry: map.entrySet()) {
+                      if (selection.select(entry.getValue(),target,!isJournalled(target,entry.getKey(),entry.getValue())))
+                         released.add(entry.getValue());
+                  }
+
+                  queue(fanout,pool,selection,dir,released,ready,count);
+                  return;
+               }
+
+               Iterator<Map.Entry<String,File>> ix = map.entrySet().iterator();
+
+               while (ix.hasNext()) {
+                     Map.Entry<String,File> entry = ix.next();
+
+                     if (isJournalled(target,entry.getKey(),entry.getValue())) {
+                        if (selection.select(entry.getValue(),target,false))
+                           released.add(entry.getValue());
+
+                        ix.remove();
+                     }
+               }
+
+               if (!queue(fanout,pool,selection,dir,released,ready,count))
+                  return;
+
+               new ListingPipeline(this,target.client,target.service,target.bucket,comparer).run(target.prefix,map,new ListingPipeline.Stage() {
+                       @Override
+                       public boolean compared(FileComparerResults rs,Map<String,StorageObject> objects) throws Exception {
+                              List<File> released = new ArrayList<File>();
+
+                              select(selection,target,map,rs.onlyOnClientKeys,       uploadNew,    released);
+                              select(selection,target,map,rs.updatedOnClientKeys,    uploadChanged,released);
+                              select(selection,target,map,rs.updatedOnServerKeys,    false,        released);
+                              select(selection,target,map,rs.alreadySynchronisedKeys,false,        released);
+
+                              return queue(fanout,pool,selection,dir,released,ready,count);
+                       }
+                   });
+       }
+
+       /** Records whether a destination needs each of a list of compared files, adding the files for
+         * which all the destinations have now been compared to <code>released</code>.
+         * 
+         */
+       private static void select(FanOut.Selection selection,FanOut.Target target,Map<String,File> map,List<String> keys,boolean upload,List<File> released) {
+               for (String key: keys) {
+                   File file = map.get(key);
+
+                   if ((file != null) && selection.select(file,target,upload))
+                      released.add(file);
+               }
+       }
+
+       /** Queues released files for upload to the destinations that need them or, if <code>ready</code>
+         * is not <code>null</code>, adds them to it to be queued in scheduled order once all the
+         * comparisons are done.
+         * 
+         * @return <code>false</code> if the worker pool has been aborted.
+         */
+       private boolean queue(FanOut fanout,WorkerPool pool,FanOut.Selection selection,File dir,List<File> files,List<File> ready,AtomicInteger count) throws IOException {
+               if (ready != null) {
+                  synchronized(ready) {
+                       ready.addAll(files);
+                  }
+
+                  return true;
+               }
+
+               for (File file: files) {
+                   List<FanOut.Target> list = selection.targets(file);
+
+                   if (list.isEmpty())
+                      continue;
+
+                   if (!pool.submit(file.getPath(),fanoutJob(fanout,list,path(dir,file),file,null)))
+                      return false;
+
+                   count.incrementAndGet();
+               }
+
+               return true;
+       }
+
+       /** Creates a fan-out destination.
+         * 
+         */
+       private FanOut.Target target(RestS3Service service,String bucket,String prefix,S3Session session) throws Exception {
+               RestS3Service     s3  = session == null ? service : session.getService();
+               AccessControlList acl = null;
+
+               if (publicRead)
+                  acl = session == null ? publicReadAcl(service,new S3Bucket(bucket)) : session.getPublicReadAcl(bucket);
+
+               return new FanOut.Target(bucket,prefix,s3,session == null ? client(service) : session.getClient(),acl);
+       }
+
+       /** Utility method to create the worker pool job that uploads a single file or resource to a set
+         * of destinations.
+         * 
+         * @param fanout   Fan-out uploader.
+         * @param targets  Destinations to which to upload.
+         * @param key      Object key relative to the destination prefix.
+         * @param file     File to upload. May be <code>null</code> for a resource that is not a file.
+         * @param resource Resource to upload. May be <code>null</code> for a file.
+         */
+       private WorkerPool.Job fanoutJob(final FanOut fanout,final List<FanOut.Target> targets,final String key,final File file,final Resource resource) {
+               return new WorkerPool.Job() {
+                          @Override
+                          public void run() throws Exception {
+                                 String      name        = file == null ? resource.getName() : file.getName();
+                                 String      contentType = mimeTypesMap.getContentType(name);
+                                 InputStream in;
+
+                                 if (dummyRun) {
+                                    log(DUMMY_RUN + " Uploading [" + (file == null ? resource : file) + "][" + key + "] to " + targets);
+                                    return;
+                                 }
+
+                                 if (verbose) {
+                                    log("Uploading [" + (file == null ? resource : file) + "][" + key + "] to " + targets);
+                                 }
+
+                                 in = file == null ? resource.getInputStream() : new FileInputStream(file);
+
+                                 try { long   length   = file == null ? resource.getSize() : file.length();
+                                       long   modified = file == null ? 0 : file.lastModified();
+                                       byte[] hash     = (file != null) && fanout.isMultipart(length) ? md5(file) : null;
+
+                                       for (FanOut.Target target: fanout.upload(targets,key,name,in,length,hash,modified,contentType,cacheNeverExpires)) {
+                                           if ((journal != null) && (file != null))
+                                              journal.done(target.bucket,target.prefix + key,file);
+                                       }
+                                 } finally {
+                                     close(in);
+                                 }
+                          }
+                      };
+       }
+
+       /** Returns <code>true</code> if the journal records that a file has already been uploaded to a
+         * destination.
+         * 
+         */
+       private boolean isJournalled(FanOut.Target target,String key,File file) {
+               return (journal != null) && journal.isDone(target.bucket,key,file);
+       }
+
+       /** Opens the upload journal, if the task has one.
+         * 
+         */
+       private void openJournal() throws IOException {
+               if ((journalFile != null) && !dummyRun) {
+                  journal = UploadJournal.open(journalFile);
+
+                  if (journal.size() > 0)
+                     log("Resuming upload from journal '" + journalFile + "' (" + journal.size() + " files done)");
+               }
+       }
+
+       /** Queues a list of files for upload in the order set by the task attribute <code>schedule</code>.
+         * 
+         * @return Number of files queued.
+         */
+       private int submit(WorkerPool pool,RestS3Service service,S3Bucket bucket,File root,List<File> list) throws IOException {
+               int count = 0;
+
+               for (File file: schedule(list)) { 
+                   if ((journal != null) && journal.isDone(bucket.getName(),key(root,file),file))
+                      continue;
+
+                   if (!dummyRun)
+                      prefetch(file);
+
+                   if (!pool.submit(file.getPath(),uploadJob(service,bucket,root,file))) {
+                      discardPrefetch(file);
+                      break;
+                   }
+
+                   count++;
+               }
+
+               return count;
+       }
+
+       /** Removes the files that the journal records as done from a file map, so that they are
+         * neither compared nor uploaded.
+         * 
+         * @return <code>false</code> if there are no files left to compare, in which case there is no
+         *         need to list the bucket.
+         */
+       private boolean skipJournalled(S3Bucket bucket,Map<String,File> map) {
+               if (journal == null)
+                  return true;
+
+               Iterator<Map.Entry<String,File>> ix = map.entrySet().iterator();
+               int                              N  = 0;
+
+               while (ix.hasNext()) {
+                     Map.Entry<String,File> entry = ix.next();
+
+                     if (journal.isDone(bucket.getName(),entry.getKey(),entry.getValue())) {
+                        ix.remove();
+                        N++;
+                     }
+               }
+
+               if (N > 0)
+                  log("Skipping " + N + " files already done according to the journal",LogLevel.VERBOSE.getLevel());
+
+               for (File file: map.values()) {
+                   if (file.isFile())
+                      return true;
+               }
+
+               return false;
+       }
+
+       /** Journals the files in a compared listing page that are not going to be uploaded, so that a
+         * restarted upload does not have to compare them again.
+         * 
+         */
+       private void journalUnchanged(S3Bucket bucket,Map<String,File> map,FileComparerResults rs,List<File> list) throws IOException {
+               Set<File>    uploading = new HashSet<File>(list);
+               List<String> keys      = new ArrayList<String>();
+
+               keys.addAll(rs.alreadySynchronisedKeys);
+               keys.addAll(rs.onlyOnClientKeys);
+               keys.addAll(rs.updatedOnClientKeys);
+               keys.addAll(rs.updatedOnServerKeys);
+
+               for (String key: keys) {
+                   File file = map.get(key);
+
+                   if ((file != null) && !uploading.contains(file))
+                      journal.done(bucket.getName(),key,file);
+               }
+       }
+
+       /** Returns the S3 object key for a file.
+         * 
+         */
+       private String key(File root,File file) throws IOException {
+               return prefix + path(root,file);
+       }
+
+       /** Returns the path of a file relative to the fileset root, as used in the S3 object key.
+         * 
+         */
+       private String path(File root,File file) throws IOException {
+               String filepath = normalize(file.getCanonicalPath()).replaceAll("\\\\", "/");
+               String rootx    = normalize(root.getCanonicalPath());
+
+               if (file.isDirectory())
+                  filepath += File.separator;
+
+               if (filepath.startsWith(rootx))
+                   return filepath.substring(rootx.length() + 1);
+               else
+                   return filepath;
+       }
+
+       /** Utility method to create the worker pool job that uploads a single file.
+         *  
+         * @param service  Initialises S3 service.
+         * @param bucket   Source bucket.
+         * @param root     'root' directory for file list. Used to match against S3 object list.
+         * @param file     File to upload.
+         */
+       private WorkerPool.Job uploadJob(final RestS3Service service,final S3Bucket bucket,final File root,final File file) {
+               return new WorkerPool.Job() {
+                          @Override
+                          public void run() throws Exception {
+                                 upload(service,bucket,root,file);
+                          }
+                      };
+       }
+
+       /** Utility method to create the worker pool job that uploads a single resource.
+         *  
+         * @param service  Initialises S3 service.
+         * @param bucket   Source bucket.
+         * @param resource Resource to upload.
+         */
+       private WorkerPool.Job uploadJob(final RestS3Service service,final S3Bucket bucket,final Resource resource) {
+               return new WorkerPool.Job() {
+                          @Override
+                          public void run() throws Exception {
+                                 upload(service,bucket,resource);
+                          }
+                      };
+       }
+
+       /** Utility method to upload a single resource. File resources are uploaded as files, anything
+         * else is streamed.
+         *  
+         * @param service  Initialises S3 service.
+         * @param bucket   Source bucket.
+         * @param resource Resource to upload.
+         * 
+         * @throws Exception
+         */
+       private void upload(RestS3Service service,S3Bucket bucket,Resource resource) throws Exception {
+               // ... validate
+
+               if (!resource.isExists()) {
+                  log("Resource '" + resource + "' does not exist",LogLevel.WARN.getLevel());
+                  return;
+               }
+
+               if (resource.getName() == null) {
+                  log("Resource '" + resource + "' has no name - skipped",LogLevel.WARN.getLevel());
+                  return;
+               }
+
+               // ... normalise
+
+               AccessControlList acl         = publicRead ? this.bucketAcl : null;
+               String            name        = resource.getName().replaceAll("\\\\", "/");
+               String            contentType = mimeTypesMap.getContentType(name);
+               String            key         = prefix + name;
+               FileProvider      provider    = resource.as(FileProvider.class);
+               File              file        = provider == null ? null : provider.getFile();
+
+               if ((file != null) && (journal != null) && journal.isDone(bucket.getName(),key,file))
+                  return;
+
+               if (dummyRun) {
+                  log(DUMMY_RUN + " Uploading [" + resource + "][" + key + "]");
+                  return;
+               }
+
+               if (verbose) {
+                  log("Uploading [" + resource + "][" + key + "]");
+               }
+
+               if (file != null) {
+                  upload(service,bucket,acl,cacheNeverExpires,key,file,contentType);
+
+                  if (journal != null)
+                     journal.done(bucket.getName(),key,file);
+               } else {
+                  InputStream in = resource.getInputStream();
+
+                  try { upload(service,bucket,acl,cacheNeverExpires,key,name,in,resource.getSize(),contentType);
+                  } finally {
+                      close(in);
+                  }
+               }
+       }
+
        /** Utility method to upload a single file.
          *  
          * @param service  Initialises S3 service.
@@ -239,6 +860,7 @@ public class S3Upload extends AWSTask  {
 
                if (!file.exists()) {
                   log("File '" + file.getPath() + "' does not exist",LogLevel.WARN.getLevel());
+                  discardPrefetch(file);
                   return;
                }
 
@@ -246,17 +868,7 @@ public class S3Upload extends AWSTask  {
 
                AccessControlList acl         = publicRead ? this.bucketAcl : null;
                String            contentType = mimeTypesMap.getContentType(file);
-               String            filepath    = normalize(file.getCanonicalPath()).replaceAll("\\\\", "/");
-               String            rootx       = normalize(root.getCanonicalPath());
-               String            key;
-
-               if (file.isDirectory())
-                  filepath += File.separator;
-
-               if (filepath.startsWith(rootx))
-                   key = prefix + filepath.substring(rootx.length() + 1);
-               else
-                   key = prefix + filepath;
+               String            key         = key(root,file);
 
                if (dummyRun) {
                   log(DUMMY_RUN + " Uploading [" + file.getCanonicalPath() + "][" + key + "]");
@@ -266,6 +878,9 @@ public class S3Upload extends AWSTask  {
                    }
 
                    upload(service,bucket,acl,cacheNeverExpires,key,file,contentType);
+
+                   if (journal != null)
+                      journal.done(bucket.getName(),key,file);
                }
        }
 }
\ No newline at end of file
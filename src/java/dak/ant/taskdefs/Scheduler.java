@@ -0,0 +1,141 @@
+package dak.ant.taskdefs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/** Orders a list of transfers before they are queued on a worker pool.
+  * <p>
+  * The 'size' order starts the largest transfers first so that a single large file does not
+  * end up running on its own after everything else has finished, and interleaves the small
+  * transfers between them so that the workers not busy with large files are kept busy with
+  * small ones.
+  * <p>
+  * The 'prefix' order spreads concurrent requests across the key space. S3 partitions a bucket by
+  * key range, so keys that share a long common prefix and are transferred in sorted order all land
+  * on the same partition and are throttled. Instead the sorted keys are divided into contiguous
+  * stripes (the square root of the number of keys, up to 64) and the transfers are queued a key
+  * at a time from each stripe in turn.
+  *
+  * @author Tony Seebregts
+  */
+class Scheduler {
+      // CONSTANTS
+
+      private static final int MAX_STRIPES = 64;
+
+      enum ORDER {
+           LISTED("listed"),
+           SIZE  ("size"),
+           PREFIX("prefix");
+
+           private final String code;
+
+           private ORDER(String code) {
+                   this.code = code;
+           }
+
+           static ORDER parse(String code) {
+                  for (ORDER order: values()) {
+                      if (order.code.equalsIgnoreCase(code))
+                         return order;
+                  }
+
+                  return null;
+           }
+      };
+
+      // INNER CLASSES
+
+      /** Returns the size in bytes of a transfer e.g. <code>File.length()</code>.
+        *
+        */
+      interface Size<T> {
+                long of(T item);
+      }
+
+      /** Returns the S3 key of a transfer.
+        *
+        */
+      interface Key<T> {
+                String of(T item);
+      }
+
+      // CLASS METHODS
+
+      /** Returns the transfers in the requested order.
+        *
+        * @param items Transfers in listed order.
+        * @param order Requested order. <code>null</code> is treated as LISTED.
+        * @param size  Returns the size of a transfer.
+        * @param key   Returns the S3 key of a transfer.
+        */
+      static <T> List<T> schedule(Collection<T> items,ORDER order,Size<T> size,Key<T> key) {
+             if (order == ORDER.SIZE)
+                return bySize(items,size);
+
+             if (order == ORDER.PREFIX)
+                return byPrefix(items,key);
+
+             return new ArrayList<T>(items);
+      }
+
+      /** Orders transfers largest first, alternating with the smallest.
+        *
+        */
+      private static <T> List<T> bySize(Collection<T> items,final Size<T> size) {
+              List<T> sorted = new ArrayList<T>(items);
+              List<T> list   = new ArrayList<T>(sorted.size());
+
+              Collections.sort(sorted,new Comparator<T>() {
+                                          @Override
+                                          public int compare(T p,T q) {
+                                                 long x = size.of(p);
+                                                 long y = size.of(q);
+
+                                                 return x > y ? -1 : (x < y ? 1 : 0);
+                                          }
+                                      });
+
+              int head = 0;
+              int tail = sorted.size() - 1;
+
+              while (head <= tail) {
+                    list.add(sorted.get(head++));
+
+                    if (head <= tail)
+                       list.add(sorted.get(tail--));
+              }
+
+              return list;
+      }
+
+      /** Orders transfers round robin across stripes of the sorted key space.
+        *
+        */
+      private static <T> List<T> byPrefix(Collection<T> items,final Key<T> key) {
+              List<T> sorted = new ArrayList<T>(items);
+              List<T> list   = new ArrayList<T>(sorted.size());
+
+              Collections.sort(sorted,new Comparator<T>() {
+                                          @Override
+                                          public int compare(T p,T q) {
+                                                 return key.of(p).compareTo(key.of(q));
+                                          }
+                                      });
+
+              int N       = sorted.size();
+              int stripes = Math.max(1,Math.min(MAX_STRIPES,(int) Math.ceil(Math.sqrt(N))));
+              int width   = (N + stripes - 1)/stripes;
+
+              for (int i=0; i<width; i++) {
+                  for (int j=i; j<N; j+=width) {
+                      list.add(sorted.get(j));
+                  }
+              }
+
+              return list;
+      }
+}
@@ -0,0 +1,76 @@
+package dak.ant.taskdefs;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.io.BytesProgressWatcher;
+import org.jets3t.service.utils.FileComparer;
+
+/** FileComparer that remembers the MD5 hash of each local file, so that a file compared with
+  * several buckets (e.g. the destinations of a fan-out upload) is read and hashed only once.
+  * <p>
+  * A hash is reused only while the file length and modification time are unchanged. Comparisons
+  * may run concurrently - a file that is being hashed for one comparison is waited for rather than
+  * hashed again.
+  *
+  * @author Tony Seebregts
+  */
+class SharedFileComparer extends FileComparer {
+      // INNER CLASSES
+
+      private static class Hash {
+              private final long length;
+              private final long modified;
+              private byte[]     md5;
+
+              private Hash(File file) {
+                      this.length   = file.length();
+                      this.modified = file.lastModified();
+              }
+
+              private boolean matches(File file) {
+                      return (length == file.length()) && (modified == file.lastModified());
+              }
+      }
+
+      // INSTANCE VARIABLES
+
+      private final ConcurrentMap<File,Hash> hashes = new ConcurrentHashMap<File,Hash>();
+
+      // CONSTRUCTORS
+
+      SharedFileComparer() {
+            super(Jets3tProperties.getInstance(Constants.JETS3T_PROPERTIES_FILENAME));
+      }
+
+      // IMPLEMENTATION
+
+      @Override
+      public byte[] generateFileMD5Hash(File file,String path,BytesProgressWatcher watcher) throws IOException,NoSuchAlgorithmException {
+             File key  = file.getAbsoluteFile();
+             Hash hash = hashes.get(key);
+
+             if ((hash == null) || !hash.matches(file)) {
+                Hash fresh = new Hash(file);
+
+                hash = hashes.putIfAbsent(key,fresh);
+
+                if ((hash == null) || !hash.matches(file)) {
+                   hashes.put(key,fresh);
+                   hash = fresh;
+                }
+             }
+
+             synchronized(hash) {
+                  if (hash.md5 == null)
+                     hash.md5 = super.generateFileMD5Hash(file,path,watcher);
+
+                  return hash.md5;
+             }
+      }
+}
@@ -0,0 +1,314 @@
+package dak.ant.taskdefs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.jets3t.service.model.MultipartPart;
+
+/** Append-only local journal of the work done by an upload, so that an upload that is killed part
+  * way through can be restarted without uploading everything again or listing the bucket.
+  * <p>
+  * The journal records:
+  * <ul>
+  * <li>done  - a file that has been uploaded (or that was found not to need uploading)
+  * <li>start - a multipart upload that has been started, with its upload ID and part size
+  * <li>part  - a completed part of a multipart upload
+  * <li>end   - a multipart upload that has been completed or abandoned
+  * </ul>
+  * Files are identified by bucket, key, length and modification time, so a file that has changed
+  * since it was journalled is uploaded again. Each record is a single line of URL encoded fields
+  * and is flushed as soon as it is written - a line left incomplete by a crash is ignored.
+  *
+  * @author Tony Seebregts
+  */
+class UploadJournal {
+      // CONSTANTS
+
+      private static final String UTF8  = "UTF-8";
+      private static final String DONE  = "done";
+      private static final String START = "start";
+      private static final String PART  = "part";
+      private static final String END   = "end";
+
+      // INNER CLASSES
+
+      /** An open multipart upload recorded in the journal.
+        *
+        */
+      static class Multipart {
+             final String uploadId;
+             final long   length;
+             final long   modified;
+             final long   size;
+
+             private final SortedMap<Integer,MultipartPart> parts = new TreeMap<Integer,MultipartPart>();
+
+             private Multipart(String uploadId,long length,long modified,long size) {
+                     this.uploadId = uploadId;
+                     this.length   = length;
+                     this.modified = modified;
+                     this.size     = size;
+             }
+
+             /** Returns the completed parts, keyed on part number.
+               *
+               */
+             synchronized Map<Integer,MultipartPart> parts() {
+                          return new TreeMap<Integer,MultipartPart>(parts);
+             }
+      }
+
+      // INSTANCE VARIABLES
+
+      private final File                   file;
+      private final Map<String,long[]>     done    = new HashMap<String,long[]>();
+      private final Map<String,Multipart>  open    = new HashMap<String,Multipart>();
+      private final Map<String,Multipart>  uploads = new HashMap<String,Multipart>();
+      private Writer                       out;
+
+      // CLASS METHODS
+
+      /** Loads an existing journal (if any) and opens it for appending.
+        *
+        * @param file Journal file. Created if it does not exist.
+        */
+      static UploadJournal open(File file) throws IOException {
+             UploadJournal journal = new UploadJournal(file);
+
+             journal.load();
+             journal.append();
+
+             return journal;
+      }
+
+      private static String encode(String field) throws UnsupportedEncodingException {
+              return URLEncoder.encode(field,UTF8);
+      }
+
+      private static String decode(String field) throws UnsupportedEncodingException {
+              return URLDecoder.decode(field,UTF8);
+      }
+
+      private static String id(String bucket,String key) {
+              return bucket + "\n" + key;
+      }
+
+      // CONSTRUCTORS
+
+      private UploadJournal(File file) {
+              this.file = file;
+      }
+
+      // IMPLEMENTATION
+
+      /** Returns the number of files recorded as done.
+        *
+        */
+      synchronized int size() {
+                   return done.size();
+      }
+
+      /** Returns <code>true</code> if the journal records that the current version of a file has been
+        * uploaded to the key.
+        *
+        */
+      synchronized boolean isDone(String bucket,String key,File file) {
+                   long[] entry = done.get(id(bucket,key));
+
+                   return (entry != null) && (entry[0] == file.length()) && (entry[1] == file.lastModified());
+      }
+
+      /** Records that a file has been uploaded, or does not need to be.
+        *
+        */
+      synchronized void done(String bucket,String key,File file) throws IOException {
+                   long length   = file.length();
+                   long modified = file.lastModified();
+
+                   write(DONE,encode(bucket),encode(key),Long.toString(length),Long.toString(modified));
+
+                   done.put(id(bucket,key),new long[] { length,modified });
+      }
+
+      /** Returns the open multipart upload of a file, or <code>null</code> if there is none or if the file
+        * or part size have changed since it was started.
+        *
+        */
+      synchronized Multipart resume(String bucket,String key,File file,long size) {
+                   Multipart upload = open.get(id(bucket,key));
+
+                   if ((upload != null) && (upload.length == file.length()) && (upload.modified == file.lastModified()) && (upload.size == size))
+                      return upload;
+
+                   return null;
+      }
+
+      /** Records the start of a multipart upload.
+        *
+        */
+      synchronized Multipart started(String bucket,String key,File file,long size,String uploadId) throws IOException {
+                   long      length   = file.length();
+                   long      modified = file.lastModified();
+                   Multipart upload   = new Multipart(uploadId,length,modified,size);
+
+                   write(START,encode(bucket),encode(key),Long.toString(length),Long.toString(modified),Long.toString(size),encode(uploadId));
+
+                   open.put(id(bucket,key),upload);
+                   uploads.put(uploadId,upload);
+
+                   return upload;
+      }
+
+      /** Records a completed part of a multipart upload.
+        *
+        */
+      synchronized void part(String uploadId,MultipartPart part) throws IOException {
+                   Multipart upload = uploads.get(uploadId);
+
+                   write(PART,encode(uploadId),part.getPartNumber().toString(),part.getSize() == null ? "-1" : part.getSize().toString(),encode(part.getEtag()));
+
+                   if (upload != null) {
+                      synchronized(upload) {
+                           upload.parts.put(part.getPartNumber(),part);
+                      }
+                   }
+      }
+
+      /** Records that a multipart upload has been completed or abandoned.
+        *
+        */
+      synchronized void ended(String uploadId) throws IOException {
+                   write(END,encode(uploadId));
+
+                   remove(uploadId);
+      }
+
+      /** Closes the journal and, if <code>completed</code> is set, deletes it since there is nothing
+        * left to resume.
+        *
+        */
+      synchronized void close(boolean completed) {
+                   AWSTask.close(out);
+
+                   out = null;
+
+                   if (completed)
+                      file.delete();
+      }
+
+      /** Reads the journal records, skipping any line that cannot be parsed.
+        *
+        */
+      private void load() throws IOException {
+              if (!file.exists())
+                 return;
+
+              BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),UTF8));
+
+              try { String line;
+
+                    while ((line = in.readLine()) != null) {
+                          try { replay(line.split(" "));
+                          } catch(RuntimeException x) {
+                              // ... incomplete or corrupt record
+                          }
+                    }
+              } finally {
+                  AWSTask.close(in);
+              }
+      }
+
+      private void replay(String[] fields) throws IOException {
+              String type = fields[0];
+
+              if (DONE.equals(type)) {
+                 String key = id(decode(fields[1]),decode(fields[2]));
+
+                 done.put(key,new long[] { Long.parseLong(fields[3]),Long.parseLong(fields[4]) });
+
+              } else if (START.equals(type)) {
+                 String    key    = id(decode(fields[1]),decode(fields[2]));
+                 String    id     = decode(fields[6]);
+                 Multipart upload = new Multipart(id,Long.parseLong(fields[3]),Long.parseLong(fields[4]),Long.parseLong(fields[5]));
+
+                 open.put(key,upload);
+                 uploads.put(id,upload);
+
+              } else if (PART.equals(type)) {
+                 Multipart upload = uploads.get(decode(fields[1]));
+                 int       part   = Integer.parseInt(fields[2]);
+                 long      size   = Long.parseLong(fields[3]);
+
+                 if (upload != null)
+                    upload.parts.put(part,new MultipartPart(part,new Date(0),decode(fields[4]),size < 0 ? null : size));
+
+              } else if (END.equals(type)) {
+                 remove(decode(fields[1]));
+              }
+      }
+
+      private void remove(String uploadId) {
+              Multipart upload = uploads.remove(uploadId);
+
+              if (upload != null)
+                 open.values().remove(upload);
+      }
+
+      /** Opens the journal for appending, terminating any incomplete last line so that it does not
+        * corrupt the next record.
+        *
+        */
+      private void append() throws IOException {
+              boolean terminate = false;
+
+              if (file.length() > 0) {
+                 RandomAccessFile raf = new RandomAccessFile(file,"r");
+
+                 try { raf.seek(file.length() - 1);
+                       terminate = raf.read() != '\n';
+                 } finally {
+                     AWSTask.close(raf);
+                 }
+              }
+
+              out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file,true),UTF8));
+
+              if (terminate) {
+                 out.write('\n');
+                 out.flush();
+              }
+      }
+
+      private void write(String... fields) throws IOException {
+              if (out == null)
+                 throw new IOException("Journal '" + file + "' is closed");
+
+              StringBuilder line = new StringBuilder();
+
+              for (String field: fields) {
+                  if (line.length() > 0)
+                     line.append(' ');
+
+                  line.append(field);
+              }
+
+              out.write(line.append('\n').toString());
+              out.flush();
+      }
+}
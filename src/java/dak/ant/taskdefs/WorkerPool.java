@@ -0,0 +1,276 @@
+package dak.ant.taskdefs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.LogLevel;
+import org.jets3t.service.ServiceException;
+
+/** Bounded worker pool for running S3 transfers concurrently on behalf of an AWSTask.
+  * <p>
+  * At most <code>threads</code> jobs run at once and at most four times that many jobs wait
+  * for a worker - <code>submit</code> blocks the calling thread when the queue is full so
+  * that a large file list is not turned into a large list of pending jobs. On Java 21 and later
+  * each job runs on its own virtual thread (see WorkerThreads) and there is no queue - at most
+  * <code>threads</code> jobs are in flight and <code>submit</code> blocks until one finishes.
+  * <p>
+  * Failures are collected per job and reported together by <code>join</code>. If the task has
+  * <code>failOnError</code> set, the first failure stops any further jobs from being
+  * started and <code>join</code> throws a BuildException once the running jobs have
+  * finished.
+  * <p>
+  * Failed jobs are retried according to the task's RetryPolicy. While the policy's circuit breaker
+  * is open jobs fail immediately, but the pool keeps running so that the first job after the
+  * cooldown can probe S3 and close the circuit again (unless <code>failOnError</code> is set).
+  *
+  * @author Tony Seebregts
+  */
+class WorkerPool {
+      // CONSTANTS
+
+      private static final int QUEUE_FACTOR = 4;
+
+      // INNER CLASSES
+
+      /** A single unit of work e.g. an upload of one file.
+        *
+        */
+      interface Job {
+                void run() throws Exception;
+      }
+
+      // INSTANCE VARIABLES
+
+      private final AWSTask         task;
+      private final boolean         failOnError;
+      private final ExecutorService executor;
+      private final Semaphore       slots;
+      private final List<String>    failures  = new ArrayList<String>();
+      private final AtomicInteger   submitted = new AtomicInteger(0);
+      private final boolean         nested;
+      private boolean               suspended;
+      private volatile boolean      aborted   = false;
+
+      // CONSTRUCTORS
+
+      /** Initialises the worker threads and the bounded work queue.
+        * <p>
+        * A pool created by a job of another pool (e.g. for the parts of a multipart upload) gives up
+        * the job's concurrency controller slot straight away and takes it back in <code>join</code> or
+        * <code>shutdown</code>. Otherwise the parent would hold its slot while it blocks in
+        * <code>submit</code> on a full queue of children that are themselves waiting for a slot.
+        *
+        * @param task        Owning task. Used for logging.
+        * @param threads     Number of worker threads (or virtual threads in flight). Values less than 1 are treated as 1.
+        * @param failOnError If <code>true</code> stops starting new jobs after the first failure.
+        */
+      WorkerPool(final AWSTask task,int threads,boolean failOnError) {
+                 int    N    = Math.max(1,threads);
+                 String name = task.getTaskName() == null ? "aws" : task.getTaskName();
+
+                 this.task        = task;
+                 this.failOnError = failOnError;
+                 this.slots       = new Semaphore(WorkerThreads.isVirtual() ? N : N + N*QUEUE_FACTOR);
+                 this.executor    = WorkerThreads.executor(name,N);
+                 this.nested      = (task.controller() != null) && task.controller().suspend();
+                 this.suspended   = nested;
+      }
+
+      // IMPLEMENTATION
+
+      /** Returns <code>true</code> if a failure has stopped the pool from accepting new jobs.
+        *
+        */
+      boolean isAborted() {
+              return aborted;
+      }
+
+      /** Queues a job for execution, blocking while the work queue is full.
+        *
+        * @param description Description of the job for error messages e.g. the S3 object key.
+        * @param job         Job to execute.
+        *
+        * @return <code>false</code> if the job was not queued because the pool has been aborted.
+        */
+      boolean submit(final String description,final Job job) {
+              if (aborted)
+                 return false;
+
+              try { slots.acquire();
+              } catch(InterruptedException x) {
+                  Thread.currentThread().interrupt();
+                  throw new BuildException("Interrupted while queueing '" + description + "'");
+              }
+
+              submitted.incrementAndGet();
+
+              executor.execute(new Runnable() {
+                                   @Override
+                                   public void run() {
+                                          try { if (!aborted)
+                                                   attempt(description,job);
+                                          } catch(Throwable x) {
+                                              fail(description,x);
+                                          } finally {
+                                              slots.release();
+                                          }
+                                   }
+                               });
+
+              return true;
+      }
+
+      /** Waits for all queued jobs to finish and shuts down the worker threads.
+        *
+        * @return Number of jobs that failed.
+        *
+        * @throws BuildException Thrown if any job failed and <code>failOnError</code> is set.
+        */
+      int join() throws BuildException {
+           ConcurrencyController controller = task.controller();
+
+           executor.shutdown();
+
+           try { while (!executor.awaitTermination(1,TimeUnit.SECONDS)) {
+                       continue;
+                 }
+           } catch(InterruptedException x) {
+               executor.shutdownNow();
+               Thread.currentThread().interrupt();
+               throw new BuildException("Interrupted while waiting for transfers to complete");
+           } finally {
+               resume();
+           }
+
+           if ((controller != null) && !nested && (submitted.get() > 0)) {
+              task.log("Concurrency: " + controller.limit() + " requests (peak " + controller.peak() + ")");
+           }
+
+           if ((task.hedger() != null) && !nested && (submitted.get() > 0)) {
+              task.log("Hedged " + task.hedger().hedges() + " requests",LogLevel.VERBOSE.getLevel());
+           }
+
+           synchronized(failures) {
+                if (!failures.isEmpty()) {
+                   String summary = failures.size() + " of " + submitted.get() + " transfers failed";
+
+                   for (String failure: failures) {
+                       task.log("  " + failure,LogLevel.ERR.getLevel());
+                   }
+
+                   if (failOnError)
+                      throw new BuildException(summary + " [" + failures.get(0) + "]");
+
+                   task.log(summary,LogLevel.ERR.getLevel());
+                }
+
+                return failures.size();
+           }
+      }
+
+      /** Runs a job, retrying it on retryable errors. If the task has an adaptive concurrency
+        * controller, each attempt waits for a slot and reports its outcome to the controller.
+        *
+        */
+      private void attempt(String description,Job job) throws Exception {
+              ConcurrencyController controller = task.controller();
+              RetryPolicy           policy     = task.retryPolicy();
+              int                   attempt    = 0;
+
+              while (true) {
+                    policy.before();
+
+                    try { if (controller == null) {
+                             job.run();
+                          } else {
+                             controller.acquire();
+
+                             long      start   = System.nanoTime();
+                             Exception failure = null;
+
+                             try { job.run();
+                             } catch(Exception x) {
+                                 failure = x;
+                                 throw x;
+                             } finally {
+                                 controller.release(System.nanoTime() - start,failure);
+                             }
+                          }
+
+                          policy.success();
+                          return;
+                    } catch(Exception x) {
+                        long delay = policy.failure(x,attempt);
+
+                        if (aborted || (delay < 0))
+                           throw x;
+
+                        attempt++;
+
+                        task.log("Retrying '" + description + "' (" + attempt + " of " + policy.retries() + ") [" + x.getMessage() + "]",LogLevel.VERBOSE.getLevel());
+
+                        Thread.sleep(delay);
+                    }
+              }
+      }
+
+      /** Discards any jobs that have not yet started and waits for the running jobs to finish. Used
+        * to clean up after an error - does nothing if the pool has already been joined.
+        *
+        */
+      void shutdown() {
+           if (executor.isTerminated()) {
+              resume();
+              return;
+           }
+
+           aborted = true;
+
+           executor.shutdownNow();
+
+           try { executor.awaitTermination(60,TimeUnit.SECONDS);
+           } catch(InterruptedException x) {
+               Thread.currentThread().interrupt();
+           } finally {
+               resume();
+           }
+      }
+
+      /** Takes back the concurrency controller slot given up by a nested pool, once.
+        *
+        */
+      private void resume() {
+              if (suspended) {
+                 suspended = false;
+                 task.controller().resume();
+              }
+      }
+
+      /** Records a failed job. The failure is logged immediately only in verbose mode - the
+        * complete list of failures is logged by <code>join</code>.
+        *
+        */
+      private void fail(String description,Throwable x) {
+              if (x instanceof RetryPolicy.RetriedException)
+                 x = x.getCause();
+
+              String message = x.getMessage();
+
+              if ((x instanceof ServiceException) && (((ServiceException) x).getErrorMessage() != null))
+                 message = ((ServiceException) x).getErrorMessage();
+
+              synchronized(failures) {
+                   failures.add(description + ": " + message);
+              }
+
+              if (failOnError)
+                 aborted = true;
+
+              task.log("Error transferring '" + description + "' [" + message + "]",LogLevel.VERBOSE.getLevel());
+      }
+}
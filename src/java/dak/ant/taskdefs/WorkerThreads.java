@@ -0,0 +1,131 @@
+package dak.ant.taskdefs;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Creates the threads on which a WorkerPool runs its jobs.
+  * <p>
+  * On Java 21 and later each job runs on its own virtual thread. A blocked S3 request costs a few KB
+  * of heap rather than a platform thread stack, so <code>threads</code> can be set to thousands - the
+  * number of jobs in flight is limited only by the WorkerPool semaphore. On earlier versions of Java
+  * jobs run on a fixed pool of platform threads.
+  * <p>
+  * The virtual thread API is looked up by reflection when the class is loaded, so that virtual
+  * threads are used however awstasks is loaded (from ANT_HOME/lib, <code>-lib</code> or a
+  * <code>taskdef</code> classpath).
+  *
+  * @author Tony Seebregts
+  */
+class WorkerThreads {
+      // CONSTANTS
+
+      private static final Method[]        VIRTUAL = lookup();
+      private static final ExecutorService SHARED  = executor("aws-shared");
+
+      // CLASS METHODS
+
+      /** Returns <code>true</code> if jobs run on virtual threads, in which case a WorkerPool does
+        * not queue jobs but starts each one as soon as there is a free slot.
+        *
+        */
+      static boolean isVirtual() {
+             return VIRTUAL != null;
+      }
+
+      /** Returns a description of the threads on which jobs run, for logging.
+        *
+        */
+      static String describe() {
+             return isVirtual() ? "virtual threads" : "platform threads (virtual threads require Java 21 or later)";
+      }
+
+      /** Creates an executor that runs at most <code>threads</code> jobs at once on threads named
+        * <code>name-1</code>, <code>name-2</code>, etc. With virtual threads each job is started on its
+        * own thread and the number of jobs running at once is limited by the caller.
+        *
+        */
+      static ExecutorService executor(String name,int threads) {
+             if (isVirtual())
+                return executor(name);
+
+             return fixed(name,threads);
+      }
+
+      /** Creates a fixed pool of <code>threads</code> daemon platform threads, whatever the Java version.
+        * Used where the number of threads is itself the limit e.g. the number of concurrent disk reads.
+        *
+        */
+      static ExecutorService fixed(String name,int threads) {
+             return Executors.newFixedThreadPool(threads,factory(name));
+      }
+
+      /** Returns the executor shared by all tasks for short lived helper jobs e.g. hedged requests.
+        * Platform threads are created as needed and exit after being idle for a minute, so the executor
+        * is never shut down.
+        *
+        */
+      static ExecutorService shared() {
+             return SHARED;
+      }
+
+      /** Creates an executor that starts a thread for each job - a virtual thread if available, otherwise
+        * a cached daemon platform thread.
+        *
+        */
+      private static ExecutorService executor(String name) {
+              if (isVirtual()) {
+                 try { Object builder = VIRTUAL[0].invoke(null);
+
+                       builder = VIRTUAL[1].invoke(builder,name + "-",1L);
+
+                       return (ExecutorService) VIRTUAL[3].invoke(null,VIRTUAL[2].invoke(builder));
+                 } catch(Exception x) {
+                     throw new IllegalStateException("Could not create virtual thread executor",x);
+                 }
+              }
+
+              return Executors.newCachedThreadPool(factory(name));
+      }
+
+      /** Creates daemon platform threads named <code>name-1</code>, <code>name-2</code>, etc.
+        *
+        */
+      private static ThreadFactory factory(final String name) {
+              final AtomicInteger count = new AtomicInteger(0);
+
+              return new ThreadFactory() {
+                         @Override
+                         public Thread newThread(Runnable runnable) {
+                                Thread thread = new Thread(runnable,name + "-" + count.incrementAndGet());
+
+                                thread.setDaemon(true);
+
+                                return thread;
+                         }
+                     };
+      }
+
+      /** Looks up Thread.ofVirtual, Thread.Builder.name, Thread.Builder.factory and
+        * Executors.newThreadPerTaskExecutor and checks that they work (they are a preview API on Java
+        * 19 and 20). Returns <code>null</code> if virtual threads are not available.
+        *
+        */
+      private static Method[] lookup() {
+              try { Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                    Method[] methods = { Thread.class.getMethod("ofVirtual"),
+                                         builder.getMethod("name",String.class,long.class),
+                                         builder.getMethod("factory"),
+                                         Executors.class.getMethod("newThreadPerTaskExecutor",ThreadFactory.class)
+                                       };
+
+                    methods[2].invoke(methods[1].invoke(methods[0].invoke(null),"probe-",1L));
+
+                    return methods;
+              } catch(Throwable x) {
+                  return null;
+              }
+      }
+}
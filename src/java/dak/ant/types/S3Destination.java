@@ -0,0 +1,120 @@
+package dak.ant.types;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.DataType;
+
+/** An S3 bucket and key prefix to which a task writes, optionally with its own S3session (e.g. for
+  * a bucket in another region or account) e.g.
+  * <pre>
+  * &lt;S3upload&gt;
+  *  &lt;S3destination bucket="releases-eu" prefix="v1.0/" /&gt;
+  *  &lt;S3destination bucket="releases-us" prefix="v1.0/"&gt;
+  *   &lt;S3session refid="us" /&gt;
+  *  &lt;/S3destination&gt;
+  *  ...
+  * &lt;/S3upload&gt;
+  * </pre>
+  * A destination without an S3session uses the credentials of the task.
+  *
+  * @author Tony Seebregts
+  */
+public class S3Destination extends DataType {
+
+       // INSTANCE VARIABLES
+
+       private String    bucket;
+       private String    prefix  = "";
+       private S3Session session;
+
+       // TASK ATTRIBUTES
+
+       /** Sets the S3 bucket name.
+         *
+         */
+       public void setBucket(String bucket) {
+              if (isReference())
+                 throw tooManyAttributes();
+
+              this.bucket = bucket;
+       }
+
+       /** Sets the key prefix ('folder equivalent') within the bucket. The default prefix is "".
+         *
+         */
+       public void setPrefix(String prefix) {
+              if (isReference())
+                 throw tooManyAttributes();
+
+              this.prefix = prefix == null ? "" : prefix;
+       }
+
+       /** Nested element to use a separate S3session (usually by <code>refid</code>) for this
+         * destination.
+         *
+         */
+       public S3Session createS3Session() {
+              if (isReference())
+                 throw noChildrenAllowed();
+
+              if (session != null)
+                 throw new BuildException("Only one S3session may be specified");
+
+              session = new S3Session();
+
+              session.setProject(getProject());
+
+              return session;
+       }
+
+       // PROPERTIES
+
+       /** Returns the bucket name.
+         *
+         * @throws BuildException Thrown if the bucket has not been set.
+         */
+       public String getBucket() throws BuildException {
+              if (isReference())
+                 return getRef(getProject()).getBucket();
+
+              if ((bucket == null) || bucket.matches("\\s*"))
+                 throw new BuildException("S3destination 'bucket' attribute must be set");
+
+              return bucket;
+       }
+
+       /** Returns the key prefix.
+         *
+         */
+       public String getPrefix() {
+              if (isReference())
+                 return getRef(getProject()).getPrefix();
+
+              return prefix;
+       }
+
+       /** Returns the destination S3session, or <code>null</code> if the destination uses the task
+         * credentials.
+         *
+         */
+       public S3Session getSession() {
+              if (isReference())
+                 return getRef(getProject()).getSession();
+
+              return session;
+       }
+
+       @Override
+       public String toString() {
+              return getBucket() + "::" + getPrefix();
+       }
+
+       // IMPLEMENTATION
+
+       /** Dereferences the destination.
+         *
+         */
+       private S3Destination getRef(Project project) {
+               return (S3Destination) getCheckedRef(project);
+       }
+}
@@ -34,6 +34,7 @@ public class S3File extends File {
        private long    length       = 0;
        private boolean exists       = false;
        private boolean isDirectory  = true;
+       private String  etag         = null;
 
        // CLASS METHODS
 
@@ -85,6 +86,7 @@ public class S3File extends File {
               this.length       = object.getContentLength();
               this.exists       = true;
               this.isDirectory  = AWSTask.isDirectory(object);
+              this.etag         = object.getETag();
        }
 
        // PROPERTIES
@@ -169,6 +171,16 @@ public class S3File extends File {
               return length;
        }
          
+       /** Returns the ETag of the 'wrapped' S3Object.
+         * <p>
+         * Only valid if this S3File instance was initialised from a fully initialised S3Object in the constructor,
+         * otherwise returns <code>null</code>.
+         *  
+         */
+       public String getETag() { 
+              return etag;
+       }
+         
        /** Returns the <code>true</code> if this S3File instance was initialised from a fully initialised S3Object 
          * in the constructor.
          *  
@@ -31,6 +31,8 @@ import org.jets3t.service.S3Service;
 import org.jets3t.service.model.S3Object;
 
 import dak.ant.selectors.S3KeySelector;
+import dak.ant.storage.Jets3tStorageClient;
+import dak.ant.storage.StorageClient;
 
 /** Ant fileset look-alike for S3 object sets. 
   * <p>
@@ -394,10 +396,21 @@ public class S3FileSet extends DataType {
          * @throws BuildException on error
          */
        public Iterator<S3File> iterator(S3Service service) { 
+              return iterator(new Jets3tStorageClient(service));
+       }
+
+       /** ResourceCollection-like <code>iterator</code> implementation. Scans the S3 bucket to find matching objects and returns
+         * an iterator for the resulting list.
+         * 
+         * @param client Initialised storage client to use for access to S3.
+         * 
+         * @throws BuildException on error
+         */
+       public Iterator<S3File> iterator(StorageClient client) { 
               if (isReference()) 
-                 return ((S3FileSet) getCheckedRef(getProject())).iterator(service);
+                 return ((S3FileSet) getCheckedRef(getProject())).iterator(client);
 
-              calculateSet(service);
+              calculateSet(client);
 
               return included.iterator();
        }
@@ -410,14 +423,52 @@ public class S3FileSet extends DataType {
          * @throws BuildException on error
          */
        public int size(S3Service service) { 
+              return size(new Jets3tStorageClient(service));
+       }
+
+       /** ResourceCollection-like <code>size</code> implementation. Scans the S3 bucket to find matching objects and returns
+         * the size of the resulting list.
+         * 
+         * @param client Initialised storage client to use for access to S3.
+         * 
+         * @throws BuildException on error
+         */
+       public int size(StorageClient client) { 
               if (isReference()) 
-                return ((S3FileSet) getCheckedRef(getProject())).size(service);
+                return ((S3FileSet) getCheckedRef(getProject())).size(client);
 
-              calculateSet(service);
+              calculateSet(client);
 
               return included.size();
        }
 
+       /** Filters a list of S3 objects e.g. a page of a bucket listing using the prefix and the includes and 
+         * excludes patterns followed by the selector filters. Used to select objects without scanning the whole
+         * bucket.
+         * 
+         * @param objects S3 objects to filter.
+         * 
+         * @return The objects selected by this fileset, in the same order as <code>objects</code>.
+         * 
+         * @throws BuildException on error
+         */
+       public List<S3File> select(S3Object[] objects) { 
+              if (isReference()) 
+                 return getRef(getProject()).select(objects);
+
+              checkParameters();
+
+              List<S3File> selected = new ArrayList<S3File>();
+
+              for (S3File object: match(getProject(),objects)) { 
+                  if (((prefix == null) || object.getKey().startsWith(prefix)) && isSelected(object.getKey(),object)) {
+                     selected.add(object);
+                  }
+              }
+
+              return selected;
+       }
+
        /** Performs the check for circular references and returns the referenced
          * S3FileSet.
          * 
@@ -429,15 +480,15 @@ public class S3FileSet extends DataType {
        /** Scans the S3 bucket and then filters the object list using the includes and excludes patterns followed
          * by the selector filters.
          * 
-         * @param service Initialised service to use for access to S3.
+         * @param client Initialised storage client to use for access to S3.
          * 
          */
-       private synchronized void calculateSet(S3Service service) { 
+       private synchronized void calculateSet(StorageClient client) { 
                checkParameters();
 
                // ... cached ?
 
-               if (service == null)
+               if (client == null)
                   throw new BuildException("Uninitialized S3 service");
 
                if (included != null)
@@ -447,7 +498,7 @@ public class S3FileSet extends DataType {
 
                included = new ArrayList<S3File>();
 
-               try { Set<S3File> objects = scan(getProject(),service);
+               try { Set<S3File> objects = scan(getProject(),client);
 
                      for (S3File object: objects) { 
                          if (isSelected(object.getKey(),object)) {
@@ -488,12 +539,32 @@ public class S3FileSet extends DataType {
        /** Retrieves the object list from the S3 bucket and matches it against the include/exclude patterns.
          * 
          * @param project  Current Ant project. Used to dereference <code>reference</code> objects.
-         * @param service Initialised service to use for access to S3.
+         * @param client   Initialised storage client to use for access to S3.
          *
          * @return Set of S3File that matches the include/excude list.
          */
-       private Set<S3File> scan(Project project,S3Service service) { 
-               Set<S3File> included = new ConcurrentSkipListSet<S3File>();
+       private Set<S3File> scan(Project project,StorageClient client) { 
+               try { Set<S3File> included = new ConcurrentSkipListSet<S3File>();
+
+                     included.addAll(match(project,client.list(bucket,prefix)));
+
+                     return included;
+                   } catch (BuildException x) {
+                       throw x;
+                   } catch (Exception x) { 
+                       throw new BuildException(x);
+                   }
+       }
+
+       /** Matches an S3 object list against the include/exclude patterns.
+         * 
+         * @param project  Current Ant project. Used to dereference <code>reference</code> objects.
+         * @param list     S3 objects to match.
+         *
+         * @return List of S3File that matches the include/excude list, in the same order as <code>list</code>.
+         */
+       private List<S3File> match(Project project,S3Object[] list) { 
+               List<S3File> included = new ArrayList<S3File>();
 
                try {
                      // ... initialise
@@ -514,14 +585,7 @@ public class S3FileSet extends DataType {
                      if (excludes == null)
                         excludes = new String[0];
 
-                     // ... scan object list
-
-                     S3Object[] list;
-
-                     if (prefix != null)
-                        list = service.listObjects(bucket, prefix, null);
-                     else
-                        list = service.listObjects(bucket);
+                     // ... match object list
 
                      for (S3Object object: list) { 
                          String  key      = object.getKey(); 
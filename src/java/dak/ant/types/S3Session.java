@@ -0,0 +1,218 @@
+package dak.ant.types;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.DataType;
+import org.jets3t.service.Constants;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.acl.AccessControlList;
+import org.jets3t.service.acl.GroupGrantee;
+import org.jets3t.service.acl.Permission;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.security.AWSCredentials;
+
+import dak.ant.storage.Jets3tStorageClient;
+import dak.ant.storage.StorageClient;
+import dak.ant.storage.StorageClients;
+
+/** Project scoped S3 session that can be shared by any number of S3 tasks by <code>refid</code>
+  * e.g.
+  * <pre>
+  * &lt;S3session id="s3" accessId="..." secretKey="..." maxConnections="100" /&gt;
+  *
+  * &lt;S3upload bucket="..."&gt;
+  *  &lt;S3session refid="s3" /&gt;
+  *  ...
+  * &lt;/S3upload&gt;
+  * </pre>
+  * The session creates a single S3 service, with its own HTTP connection pool, the first time it
+  * is used so that the tasks that share it reuse the same kept-alive connections rather than each
+  * setting up connections (and TLS handshakes) of their own. Bucket ACLs retrieved for
+  * <code>publicRead</code> uploads are cached for the duration of the build.
+  * <p>
+  * Failed requests are retried by the retry policy of each task, so the jets3t HTTP client retries
+  * are disabled for the shared service.
+  *
+  * @author Tony Seebregts
+  *
+  */
+public class S3Session extends DataType {
+
+       // INSTANCE VARIABLES
+
+       private String  accessId;
+       private String  secretKey;
+       private int     maxConnections = 50;
+       private int     keepAlive      = 60;
+       private String  transport      = "jets3t";
+       private String  region         = "us-east-1";
+
+       private RestS3Service                  service;
+       private StorageClient                  client;
+       private Map<String,AccessControlList> acls = new HashMap<String,AccessControlList>();
+
+       // TASK ATTRIBUTES
+
+       /** Sets the AWS access ID.
+         *
+         */
+       public void setAccessId(String accessId) {
+              if (isReference())
+                 throw tooManyAttributes();
+
+              this.accessId = accessId;
+       }
+
+       /** Sets the AWS secret key.
+         *
+         */
+       public void setSecretKey(String secretKey) {
+              if (isReference())
+                 throw tooManyAttributes();
+
+              this.secretKey = secretKey;
+       }
+
+       /** Sets the maximum number of HTTP connections in the connection pool. Should be at least as large
+         * as the largest <code>threads</code> attribute of the tasks that share the session. The default
+         * value is 50.
+         *
+         */
+       public void setMaxConnections(int maxConnections) {
+              if (isReference())
+                 throw tooManyAttributes();
+
+              this.maxConnections = maxConnections;
+       }
+
+       /** Sets the time (in seconds) for which an idle HTTP connection is kept alive for reuse. The
+         * default value is 60 seconds.
+         *
+         */
+       public void setKeepAlive(int keepAlive) {
+              if (isReference())
+                 throw tooManyAttributes();
+
+              this.keepAlive = keepAlive;
+       }
+
+       /** Selects the HTTP transport for S3 requests. 'jets3t' (the default) uses the jets3t REST service,
+         * 'http' uses the Java 11+ <code>java.net.http.HttpClient</code> (listing comparisons for new/changed
+         * files still go through jets3t).
+         *
+         */
+       public void setTransport(String transport) {
+              if (isReference())
+                 throw tooManyAttributes();
+
+              if (!"jets3t".equalsIgnoreCase(transport) && !"http".equalsIgnoreCase(transport))
+                 throw new BuildException("Invalid S3session 'transport' attribute: " + transport);
+
+              this.transport = transport.toLowerCase();
+       }
+
+       /** Sets the AWS region of the buckets for the 'http' transport. The default value is 'us-east-1'.
+         *
+         */
+       public void setRegion(String region) {
+              if (isReference())
+                 throw tooManyAttributes();
+
+              this.region = region;
+       }
+
+       // IMPLEMENTATION
+
+       /** Returns the shared S3 service, creating it on first use.
+         *
+         * @throws BuildException Thrown if the credentials have not been set or the service could not be
+         *                        created.
+         */
+       public synchronized RestS3Service getService() throws BuildException {
+              if (isReference())
+                 return getRef(getProject()).getService();
+
+              dieOnCircularReference();
+
+              if (service == null) {
+                 if (accessId == null)
+                    throw new BuildException("S3session accessId must be set");
+
+                 if (secretKey == null)
+                    throw new BuildException("S3session secretKey must be set");
+
+                 Jets3tProperties properties = new Jets3tProperties();
+
+                 properties.loadAndReplaceProperties(Jets3tProperties.getInstance(Constants.JETS3T_PROPERTIES_FILENAME),Constants.JETS3T_PROPERTIES_FILENAME);
+                 properties.setProperty("httpclient.max-connections",         Integer.toString(maxConnections));
+                 properties.setProperty("httpclient.max-connections-per-host",Integer.toString(maxConnections));
+                 properties.setProperty("httpclient.connection.ttl",          Long.toString(keepAlive * 1000L));
+                 properties.setProperty("httpclient.retry-max",               "0");
+
+                 service = new RestS3Service(new AWSCredentials(accessId,secretKey),null,null,properties);
+              }
+
+              return service;
+       }
+
+       /** Returns the shared storage client for the <code>transport</code> attribute, creating it on first use.
+         *
+         * @throws BuildException Thrown if the credentials have not been set or the client could not be
+         *                        created.
+         */
+       public synchronized StorageClient getClient() throws BuildException {
+              if (isReference())
+                 return getRef(getProject()).getClient();
+
+              if (client == null) {
+                 if ("http".equals(transport)) {
+                    try { client = StorageClients.http(accessId,secretKey,region,getService().getJetS3tProperties());
+                    } catch(UnsupportedOperationException x) {
+                        throw new BuildException(x.getMessage());
+                    }
+                 } else {
+                    client = new Jets3tStorageClient(getService());
+                 }
+              }
+
+              return client;
+       }
+
+       /** Returns the ACL of a bucket with public read access granted, for uploading publicly readable
+         * objects. The bucket ACL is retrieved once per bucket and cached.
+         *
+         * @param bucket S3 bucket name.
+         *
+         * @throws ServiceException Thrown if the bucket ACL could not be retrieved.
+         */
+       public AccessControlList getPublicReadAcl(String bucket) throws ServiceException {
+              if (isReference())
+                 return getRef(getProject()).getPublicReadAcl(bucket);
+
+              RestS3Service service = getService();
+
+              synchronized(acls) {
+                   AccessControlList acl = acls.get(bucket);
+
+                   if (acl == null) {
+                      acl = service.getBucketAcl(bucket);
+
+                      acl.grantPermission(GroupGrantee.ALL_USERS,Permission.PERMISSION_READ);
+                      acls.put(bucket,acl);
+                   }
+
+                   return acl;
+              }
+       }
+
+       /** Dereferences the session.
+         *
+         */
+       private S3Session getRef(Project project) {
+               return (S3Session) getCheckedRef(project);
+       }
+}
@@ -0,0 +1,639 @@
+package dak.ant.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.acl.AccessControlList;
+import org.jets3t.service.acl.EmailAddressGrantee;
+import org.jets3t.service.acl.GrantAndPermission;
+import org.jets3t.service.acl.GroupGrantee;
+import org.jets3t.service.acl.Permission;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/** StorageClient implementation on <code>java.net.http.HttpClient</code>, with AWS Signature Version 4
+  * request signing.
+  * <p>
+  * Requests are sent asynchronously on the HttpClient's non-blocking connection pool, which is shared
+  * by all the worker threads and negotiates HTTP/2 (multiplexing requests over a single connection)
+  * with endpoints that support it. Request bodies are streamed from files or the object data stream
+  * with a fixed Content-Length and are not hashed (UNSIGNED-PAYLOAD over HTTPS).
+  * <p>
+  * Buckets are addressed as virtual hosts (<code>bucket.s3.region.amazonaws.com</code>) except for bucket
+  * names that contain a '.', which are addressed by path so that the TLS certificate matches.
+  *
+  * @author Tony Seebregts
+  */
+public class HttpStorageClient implements StorageClient {
+
+       // CONSTANTS
+
+       private static final Set<String> HEADERS = Set.of("cache-control","content-disposition","content-encoding","content-language","content-type","expires","content-md5");
+       private static final Set<String> IGNORE  = Set.of("content-length","etag","last-modified","date");
+
+       private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+       private static final int CHUNK = 256 * 1024;
+
+       private static final long MIN_RATE = 8 * 1024;
+
+       // INNER CLASSES
+
+       /** Publishes a memory mapped FileRegion as a sequence of read-only slices, so that the request
+         * body is written to the connection straight from the mapped pages without being copied to the
+         * heap. Each subscription (e.g. a retry) starts again from the beginning of the region.
+         *
+         */
+       private static class RegionPublisher implements Flow.Publisher<ByteBuffer> {
+                            private final ByteBuffer region;
+
+                            RegionPublisher(ByteBuffer region) {
+                                            this.region = region;
+                            }
+
+                            @Override
+                            public void subscribe(final Flow.Subscriber<? super ByteBuffer> subscriber) {
+                                   final ByteBuffer    buffer    = region.duplicate();
+                                   final AtomicLong    demand    = new AtomicLong();
+                                   final AtomicBoolean cancelled = new AtomicBoolean();
+
+                                   subscriber.onSubscribe(new Flow.Subscription() {
+                                       @Override
+                                       public void request(long n) {
+                                              if (n <= 0) {
+                                                 if (!cancelled.getAndSet(true))
+                                                    subscriber.onError(new IllegalArgumentException("Invalid request for " + n + " buffers"));
+
+                                                 return;
+                                              }
+
+                                              // ... only one thread drains - a request made while draining (e.g. from onNext) just adds to the demand
+
+                                              if (demand.getAndAccumulate(n,(p,q) -> (p + q < 0) ? Long.MAX_VALUE : p + q) != 0)
+                                                 return;
+
+                                              long requested = demand.get();
+
+                                              while (true) {
+                                                    long emitted = 0;
+
+                                                    while ((emitted < requested) && buffer.hasRemaining()) {
+                                                          if (cancelled.get())
+                                                             return;
+
+                                                          int        N     = Math.min(CHUNK,buffer.remaining());
+                                                          ByteBuffer slice = buffer.duplicate();
+
+                                                          slice.limit(slice.position() + N);
+                                                          subscriber.onNext(slice.slice());
+                                                          buffer.position(buffer.position() + N);
+                                                          emitted++;
+                                                    }
+
+                                                    if (!buffer.hasRemaining()) {
+                                                       if (!cancelled.getAndSet(true))
+                                                          subscriber.onComplete();
+
+                                                       return;
+                                                    }
+
+                                                    if ((requested = demand.addAndGet(-emitted)) == 0)
+                                                       return;
+                                              }
+                                       }
+
+                                       @Override
+                                       public void cancel() {
+                                              cancelled.set(true);
+                                       }
+                                   });
+                            }
+       }
+
+       // INSTANCE VARIABLES
+
+       private final HttpClient  client;
+       private final SignatureV4 signer;
+       private final String      region;
+       private final long        timeout;
+
+       // CONSTRUCTORS
+
+       /** Initialises the client and its connection pool.
+         *
+         * @param accessId       AWS access ID.
+         * @param secretKey      AWS secret key.
+         * @param region         AWS region of the buckets e.g. 'us-east-1'.
+         * @param connectTimeout Time allowed to establish a connection, in milliseconds. 0 for no timeout.
+         * @param socketTimeout  Time allowed for S3 to respond to a request once it has been sent, in
+         *                       milliseconds (see <code>send</code>). 0 for no timeout.
+         */
+       public HttpStorageClient(String accessId,String secretKey,String region,int connectTimeout,int socketTimeout) {
+              this.region  = region;
+              this.signer  = new SignatureV4(accessId,secretKey,region);
+              this.timeout = socketTimeout;
+
+              HttpClient.Builder builder = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2);
+
+              if (connectTimeout > 0)
+                 builder.connectTimeout(Duration.ofMillis(connectTimeout));
+
+              this.client = builder.build();
+       }
+
+       // *** StorageClient ***
+
+       @Override
+       public S3Object[] list(String bucket,String prefix) throws Exception {
+              List<S3Object> list  = new ArrayList<S3Object>();
+              S3Object[]     page;
+
+              while ((page = list(bucket,prefix,list.isEmpty() ? null : list.get(list.size() - 1).getKey(),1000)).length > 0) {
+                    list.addAll(Arrays.asList(page));
+              }
+
+              return list.toArray(new S3Object[0]);
+       }
+
+       @Override
+       public S3Object[] list(String bucket,String prefix,String after,int max) throws Exception {
+              SortedMap<String,String> query = new TreeMap<String,String>();
+
+              query.put("list-type","2");
+              query.put("max-keys",Integer.toString(max));
+
+              if ((prefix != null) && !prefix.isEmpty())
+                 query.put("prefix",prefix);
+
+              if (after != null)
+                 query.put("start-after",after);
+
+              Document       document = xml(send("GET",uri(bucket,null,query),new TreeMap<String,String>(),null));
+              NodeList       contents = document.getElementsByTagName("Contents");
+              List<S3Object> list     = new ArrayList<S3Object>();
+
+              for (int i=0; i<contents.getLength(); i++) {
+                  Element  element = (Element) contents.item(i);
+                  S3Object object  = new S3Object(text(element,"Key"));
+
+                  object.setBucketName      (bucket);
+                  object.setContentLength   (Long.parseLong(text(element,"Size")));
+                  object.setETag            (text(element,"ETag"));
+                  object.setLastModifiedDate(Date.from(Instant.parse(text(element,"LastModified"))));
+                  object.setStorageClass    (text(element,"StorageClass"));
+                  object.setMetadataComplete(false);
+
+                  list.add(object);
+              }
+
+              return list.toArray(new S3Object[0]);
+       }
+
+       @Override
+       public StorageObject head(String bucket,String key) throws Exception {
+              HttpResponse<InputStream> response = send("HEAD",uri(bucket,key,null),new TreeMap<String,String>(),null);
+
+              close(response);
+
+              return object(bucket,key,response.headers());
+       }
+
+       @Override
+       public S3Object get(String bucket,String key,String etag,Long start,Long end) throws Exception {
+              SortedMap<String,String> headers = new TreeMap<String,String>();
+
+              if (etag != null)
+                 headers.put("if-match",quote(etag));
+
+              if ((start != null) || (end != null))
+                 headers.put("range","bytes=" + (start == null ? "" : start) + "-" + (end == null ? "" : end));
+
+              HttpResponse<InputStream> response = send("GET",uri(bucket,key,null),headers,null);
+              S3Object                  object   = object(bucket,key,response.headers());
+
+              object.setDataInputStream(response.body());
+
+              return object;
+       }
+
+       @Override
+       public void put(String bucket,S3Object object) throws Exception {
+              SortedMap<String,String> headers = new TreeMap<String,String>();
+
+              metadata(object,headers);
+              acl     (object.getAcl(),headers);
+
+              HttpResponse<InputStream> response = send("PUT",uri(bucket,object.getKey(),null),headers,body(object));
+
+              close(response);
+
+              response.headers().firstValue("ETag").ifPresent(object::setETag);
+       }
+
+       @Override
+       public MultipartUpload multipartStart(String bucket,S3Object object) throws Exception {
+              SortedMap<String,String> headers = new TreeMap<String,String>();
+              SortedMap<String,String> query   = new TreeMap<String,String>();
+
+              metadata(object,headers);
+              acl     (object.getAcl(),headers);
+              query.put("uploads","");
+
+              Document document = xml(send("POST",uri(bucket,object.getKey(),query),headers,null));
+
+              return new MultipartUpload(text(document.getDocumentElement(),"UploadId"),bucket,object.getKey());
+       }
+
+       @Override
+       public MultipartPart multipartPut(MultipartUpload upload,int part,S3Object slice) throws Exception {
+              SortedMap<String,String> query = new TreeMap<String,String>();
+
+              query.put("partNumber",Integer.toString(part));
+              query.put("uploadId",  upload.getUploadId());
+
+              HttpResponse<InputStream> response = send("PUT",uri(upload.getBucketName(),upload.getObjectKey(),query),new TreeMap<String,String>(),body(slice));
+
+              close(response);
+
+              return new MultipartPart(part,new Date(),response.headers().firstValue("ETag").orElse(null),slice.getContentLength());
+       }
+
+       @Override
+       public MultipartPart multipartCopy(MultipartUpload upload,int part,String sourceBucket,String sourceKey,String etag,long start,long end) throws Exception {
+              SortedMap<String,String> headers = new TreeMap<String,String>();
+              SortedMap<String,String> query   = new TreeMap<String,String>();
+
+              headers.put("x-amz-copy-source",      "/" + sourceBucket + "/" + SignatureV4.encode(sourceKey,true));
+              headers.put("x-amz-copy-source-range","bytes=" + start + "-" + end);
+
+              if (etag != null)
+                 headers.put("x-amz-copy-source-if-match",quote(etag));
+
+              query.put("partNumber",Integer.toString(part));
+              query.put("uploadId",  upload.getUploadId());
+
+              Document document = xml(send("PUT",uri(upload.getBucketName(),upload.getObjectKey(),query),headers,null));
+
+              return new MultipartPart(part,new Date(),text(document.getDocumentElement(),"ETag"),end - start + 1);
+       }
+
+       @Override
+       public void multipartComplete(MultipartUpload upload,List<MultipartPart> parts) throws Exception {
+              SortedMap<String,String> query = new TreeMap<String,String>();
+              StringBuilder            xml   = new StringBuilder("<CompleteMultipartUpload>");
+
+              for (MultipartPart part: parts) {
+                  xml.append("<Part><PartNumber>").append(part.getPartNumber()).append("</PartNumber>")
+                     .append("<ETag>").append(escape(quote(part.getEtag()))).append("</ETag></Part>");
+              }
+
+              xml.append("</CompleteMultipartUpload>");
+              query.put("uploadId",upload.getUploadId());
+
+              xml(send("POST",uri(upload.getBucketName(),upload.getObjectKey(),query),new TreeMap<String,String>(),BodyPublishers.ofString(xml.toString())));
+       }
+
+       @Override
+       public void multipartAbort(MultipartUpload upload) throws Exception {
+              SortedMap<String,String> query = new TreeMap<String,String>();
+
+              query.put("uploadId",upload.getUploadId());
+
+              close(send("DELETE",uri(upload.getBucketName(),upload.getObjectKey(),query),new TreeMap<String,String>(),null));
+       }
+
+       @Override
+       public void copy(String sourceBucket,String sourceKey,String bucket,S3Object object,boolean replaceMetadata) throws Exception {
+              SortedMap<String,String> headers = new TreeMap<String,String>();
+
+              headers.put("x-amz-copy-source",        "/" + sourceBucket + "/" + SignatureV4.encode(sourceKey,true));
+              headers.put("x-amz-metadata-directive", replaceMetadata ? "REPLACE" : "COPY");
+
+              if (replaceMetadata)
+                 metadata(object,headers);
+
+              acl(object.getAcl(),headers);
+
+              xml(send("PUT",uri(bucket,object.getKey(),null),headers,null));
+       }
+
+       @Override
+       public void delete(String bucket,String key) throws Exception {
+              close(send("DELETE",uri(bucket,key,null),new TreeMap<String,String>(),null));
+       }
+
+       // IMPLEMENTATION
+
+       /** Returns the URI for a bucket, key and query parameters.
+         *
+         */
+       private URI uri(String bucket,String key,SortedMap<String,String> query) {
+               String        host = "s3." + region + ".amazonaws.com";
+               StringBuilder uri  = new StringBuilder("https://");
+
+               if (bucket.indexOf('.') < 0) {
+                  uri.append(bucket).append('.').append(host).append('/');
+               } else {
+                  uri.append(host).append('/').append(SignatureV4.encode(bucket,false)).append('/');
+               }
+
+               if (key != null)
+                  uri.append(SignatureV4.encode(key,true));
+
+               if ((query != null) && !query.isEmpty()) {
+                  String separator = "?";
+
+                  for (Map.Entry<String,String> entry: query.entrySet()) {
+                      uri.append(separator).append(SignatureV4.encode(entry.getKey(),false)).append('=').append(SignatureV4.encode(entry.getValue(),false));
+                      separator = "&";
+                  }
+               }
+
+               return URI.create(uri.toString());
+       }
+
+       /** Signs and sends a request, returning the response if it succeeded.
+         * <p>
+         * The request times out if the response headers have not been received within the socket
+         * timeout plus the time to send the request body at <code>MIN_RATE</code> bytes per second, so
+         * that a stalled exchange fails with an HttpTimeoutException (which is retried) rather than
+         * holding a worker thread indefinitely. The timeout aborts the exchange and releases its
+         * connection.
+         * <p>
+         * An interrupted request is cancelled, which aborts the exchange from Java 16 on. Earlier JVMs
+         * ignore the cancellation and would drop the response without closing it, so there the exchange
+         * is left to complete (or time out) and the late response is closed to release its connection.
+         *
+         * @throws ServiceException Thrown if S3 returned an error response.
+         */
+       private HttpResponse<InputStream> send(String method,URI uri,SortedMap<String,String> headers,BodyPublisher body) throws Exception {
+               String timestamp = TIMESTAMP.format(Instant.now());
+
+               headers.put("host",                uri.getHost());
+               headers.put("x-amz-date",          timestamp);
+               headers.put("x-amz-content-sha256",SignatureV4.UNSIGNED_PAYLOAD);
+
+               HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                                                        .method(method,body == null ? BodyPublishers.noBody() : body);
+
+               if (timeout > 0) {
+                  long length = body == null ? 0 : Math.max(0,body.contentLength());
+
+                  builder.timeout(Duration.ofMillis(timeout + 1000 * length/MIN_RATE));
+               }
+
+               for (Map.Entry<String,String> entry: headers.entrySet()) {
+                   if (!entry.getKey().equals("host"))
+                      builder.header(entry.getKey(),entry.getValue());
+               }
+
+               builder.header("Authorization",signer.authorize(method,uri,signed(headers),timestamp));
+
+               CompletableFuture<HttpResponse<InputStream>> future = client.sendAsync(builder.build(),BodyHandlers.ofInputStream());
+               HttpResponse<InputStream>                    response;
+
+               try { response = future.get();
+               } catch(InterruptedException x) {
+                   future.thenAccept(late -> discard(late));
+
+                   if (Runtime.version().feature() >= 16)
+                      future.cancel(true);
+
+                   throw x;
+               } catch(ExecutionException x) {
+                   throw x.getCause() instanceof Exception ? (Exception) x.getCause() : x;
+               }
+
+               int status = response.statusCode();
+
+               if ((status >= 200) && (status < 300))
+                  return response;
+
+               String xml;
+
+               try (InputStream in = response.body()) {
+                    xml = new String(in.readAllBytes(),StandardCharsets.UTF_8);
+               }
+
+               throw error(method,uri,status,xml);
+       }
+
+       /** Returns the headers to sign i.e. <code>host</code>, <code>x-amz-*</code> and the standard
+         * object headers.
+         *
+         */
+       private static SortedMap<String,String> signed(SortedMap<String,String> headers) {
+               SortedMap<String,String> signed = new TreeMap<String,String>();
+
+               for (Map.Entry<String,String> entry: headers.entrySet()) {
+                   String name = entry.getKey();
+
+                   if (name.equals("host") || name.startsWith("x-amz-") || HEADERS.contains(name) || name.equals("range") || name.equals("if-match"))
+                      signed.put(name,entry.getValue());
+               }
+
+               return signed;
+       }
+
+       /** Creates a ServiceException for an S3 error response, with the response code and S3 error code
+         * set so that it is retried (or not) in the same way as a jets3t error.
+         *
+         */
+       private static ServiceException error(String method,URI uri,int status,String xml) {
+               String           message = method + " '" + uri.getRawPath() + "' failed (HTTP " + status + ")";
+               ServiceException x       = (xml != null) && xml.contains("<Error>") ? new ServiceException(message,xml) : new ServiceException(message);
+
+               x.setResponseCode(status);
+               x.setRequestVerb (method);
+               x.setRequestPath (uri.getRawPath());
+
+               return x;
+       }
+
+       /** Parses an XML response body. Throws a ServiceException for an error document, since S3 can return
+         * an error in the body of a 200 response to a copy or multipart upload completion.
+         *
+         */
+       private static Document xml(HttpResponse<InputStream> response) throws Exception {
+               byte[] bytes;
+
+               try (InputStream in = response.body()) {
+                    bytes = in.readAllBytes();
+               }
+
+               DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+
+               factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl",true);
+
+               Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(bytes));
+
+               if ("Error".equals(document.getDocumentElement().getTagName()))
+                  throw error(response.request().method(),response.uri(),500,new String(bytes,StandardCharsets.UTF_8));
+
+               return document;
+       }
+
+       /** Returns the text of the first child element with the given name, or <code>null</code>.
+         *
+         */
+       private static String text(Element element,String name) {
+               NodeList list = element.getElementsByTagName(name);
+
+               return list.getLength() == 0 ? null : list.item(0).getTextContent();
+       }
+
+       /** Creates an object from the response headers of a HEAD or GET request.
+         *
+         */
+       private static S3Object object(String bucket,String key,HttpHeaders headers) {
+               S3Object object = new S3Object(key);
+
+               object.setBucketName(bucket);
+
+               for (Map.Entry<String,List<String>> entry: headers.map().entrySet()) {
+                   String name  = entry.getKey().toLowerCase(Locale.ROOT);
+                   String value = entry.getValue().isEmpty() ? "" : entry.getValue().get(0);
+
+                   if (name.startsWith("x-amz-meta-")) {
+                      object.addMetadata(name.substring(11),value);
+                   } else if (name.equals("content-length")) {
+                      object.setContentLength(Long.parseLong(value));
+                   } else if (name.equals("etag")) {
+                      object.setETag(value);
+                   } else if (name.equals("last-modified")) {
+                      object.setLastModifiedDate(Date.from(ZonedDateTime.parse(value,DateTimeFormatter.RFC_1123_DATE_TIME).toInstant()));
+                   } else if (name.equals("x-amz-storage-class")) {
+                      object.setStorageClass(value);
+                   } else if (HEADERS.contains(name)) {
+                      object.addMetadata(entry.getKey(),value);
+                   }
+               }
+
+               object.setMetadataComplete(true);
+
+               return object;
+       }
+
+       /** Adds the metadata of an object to the request headers - standard HTTP headers as is, anything
+         * else as user metadata.
+         *
+         */
+       private static void metadata(StorageObject object,SortedMap<String,String> headers) {
+               for (Map.Entry<String,Object> entry: object.getMetadataMap().entrySet()) {
+                   String name  = entry.getKey().toLowerCase(Locale.ROOT);
+                   Object value = entry.getValue();
+
+                   if ((value == null) || IGNORE.contains(name)) {
+                      continue;
+                   } else if (HEADERS.contains(name) || name.startsWith("x-amz-")) {
+                      headers.put(name,value.toString());
+                   } else {
+                      headers.put("x-amz-meta-" + name,value.toString());
+                   }
+               }
+       }
+
+       /** Adds an ACL to the request headers, as a canned ACL or as explicit x-amz-grant-* headers.
+         *
+         */
+       private static void acl(AccessControlList acl,SortedMap<String,String> headers) {
+               if (acl == null)
+                  return;
+
+               if ((acl == AccessControlList.REST_CANNED_PRIVATE)           ||
+                   (acl == AccessControlList.REST_CANNED_PUBLIC_READ)       ||
+                   (acl == AccessControlList.REST_CANNED_PUBLIC_READ_WRITE) ||
+                   (acl == AccessControlList.REST_CANNED_AUTHENTICATED_READ)) {
+                  headers.put("x-amz-acl",acl.getValueForRESTHeaderACL());
+                  return;
+               }
+
+               for (GrantAndPermission grant: acl.getGrantAndPermissions()) {
+                   if (grant.getPermission() == Permission.PERMISSION_WRITE)
+                      continue;
+
+                   String header  = "x-amz-grant-" + grant.getPermission().toString().toLowerCase(Locale.ROOT).replace('_','-');
+                   String grantee = grant.getGrantee() instanceof GroupGrantee        ? "uri=\""          + grant.getGrantee().getIdentifier() + "\""
+                                  : grant.getGrantee() instanceof EmailAddressGrantee ? "emailAddress=\"" + grant.getGrantee().getIdentifier() + "\""
+                                  :                                                     "id=\""           + grant.getGrantee().getIdentifier() + "\"";
+
+                   headers.merge(header,grantee,(p,q) -> p + ", " + q);
+               }
+       }
+
+       /** Returns a fixed length request body for the data input file or stream of an object. A
+         * memory mapped FileRegion is sent directly from the mapped buffer.
+         *
+         */
+       private static BodyPublisher body(S3Object object) throws Exception {
+               if ((object.getDataInputFile() != null) && (object.getContentLength() == object.getDataInputFile().length()))
+                  return BodyPublishers.ofFile(object.getDataInputFile().toPath());
+
+               if (object.getDataInputStream() instanceof FileRegion) {
+                  FileRegion region = (FileRegion) object.getDataInputStream();
+
+                  if (region.length() == object.getContentLength())
+                     return BodyPublishers.fromPublisher(new RegionPublisher(region.buffer()),object.getContentLength());
+               }
+
+               final InputStream in = object.getDataInputStream();
+
+               return BodyPublishers.fromPublisher(BodyPublishers.ofInputStream(() -> in),object.getContentLength());
+       }
+
+       private static void close(HttpResponse<InputStream> response) throws IOException {
+               response.body().close();
+       }
+
+       private static void discard(HttpResponse<InputStream> response) {
+               try { close(response);
+               } catch(IOException x) {
+               }
+       }
+
+       private static String quote(String etag) {
+               return etag.startsWith("\"") ? etag : "\"" + etag + "\"";
+       }
+
+       private static String escape(String text) {
+               return text.replace("&","&amp;").replace("<","&lt;").replace(">","&gt;").replace("\"","&quot;");
+       }
+}
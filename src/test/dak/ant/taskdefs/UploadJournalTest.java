@@ -0,0 +1,179 @@
+package dak.ant.taskdefs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.Map;
+
+import org.jets3t.service.model.MultipartPart;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Checks that an UploadJournal replays its records when it is reopened, including a journal left
+  * with an incomplete last line.
+  *
+  * @author Tony Seebregts
+  */
+public class UploadJournalTest {
+
+       // CONSTANTS
+
+       private static final String BUCKET = "bucket";
+       private static final long   SIZE   = 5 * 1024 * 1024;
+
+       // INSTANCE VARIABLES
+
+       private File directory;
+       private File journal;
+       private File file;
+
+       // TESTS
+
+       @Before
+       public void setUp() throws Exception {
+              directory = Files.createTempDirectory("journal").toFile();
+              journal   = new File(directory,"upload.journal");
+              file      = new File(directory,"data file.bin");
+
+              write(file,"0123456789");
+       }
+
+       @After
+       public void tearDown() throws Exception {
+              for (File f: directory.listFiles()) {
+                  f.delete();
+              }
+
+              directory.delete();
+       }
+
+       @Test
+       public void testDone() throws Exception {
+              UploadJournal writer = UploadJournal.open(journal);
+
+              writer.done(BUCKET,"a/b c+d",file);
+              writer.close(false);
+
+              UploadJournal reader = UploadJournal.open(journal);
+
+              assertEquals(1,reader.size());
+              assertTrue  (reader.isDone(BUCKET,"a/b c+d",file));
+              assertFalse (reader.isDone(BUCKET,"a/b",file));
+              assertFalse (reader.isDone("other","a/b c+d",file));
+
+              write(file,"changed");
+
+              assertFalse(reader.isDone(BUCKET,"a/b c+d",file));
+       }
+
+       @Test
+       public void testMultipart() throws Exception {
+              UploadJournal writer = UploadJournal.open(journal);
+
+              writer.started(BUCKET,"big",file,SIZE,"upload/1");
+              writer.part("upload/1",new MultipartPart(1,new Date(),"etag-1",SIZE));
+              writer.part("upload/1",new MultipartPart(3,new Date(),"etag-3",1024L));
+              writer.close(false);
+
+              UploadJournal           reader = UploadJournal.open(journal);
+              UploadJournal.Multipart upload = reader.resume(BUCKET,"big",file,SIZE);
+
+              assertNotNull(upload);
+              assertEquals ("upload/1",upload.uploadId);
+              assertEquals (file.length(),upload.length);
+
+              Map<Integer,MultipartPart> parts = upload.parts();
+
+              assertEquals(2,parts.size());
+              assertEquals("etag-1",parts.get(1).getEtag());
+              assertEquals(SIZE,    parts.get(1).getSize().longValue());
+              assertEquals("etag-3",parts.get(3).getEtag());
+              assertEquals(1024L,   parts.get(3).getSize().longValue());
+
+              assertNull(reader.resume(BUCKET,"big",file,2 * SIZE));
+              assertNull(reader.resume(BUCKET,"other",file,SIZE));
+       }
+
+       @Test
+       public void testEnded() throws Exception {
+              UploadJournal writer = UploadJournal.open(journal);
+
+              writer.started(BUCKET,"big",file,SIZE,"upload-1");
+              writer.part   ("upload-1",new MultipartPart(1,new Date(),"etag-1",SIZE));
+              writer.ended  ("upload-1");
+              writer.started(BUCKET,"big",file,SIZE,"upload-2");
+              writer.close(false);
+
+              UploadJournal.Multipart upload = UploadJournal.open(journal).resume(BUCKET,"big",file,SIZE);
+
+              assertNotNull(upload);
+              assertEquals ("upload-2",upload.uploadId);
+              assertTrue   (upload.parts().isEmpty());
+       }
+
+       @Test
+       public void testIncompleteLine() throws Exception {
+              UploadJournal writer = UploadJournal.open(journal);
+
+              writer.done(BUCKET,"first",file);
+              writer.close(false);
+
+              append(journal,"done bucket sec");
+
+              UploadJournal reopened = UploadJournal.open(journal);
+
+              assertEquals(1,reopened.size());
+              assertTrue  (reopened.isDone(BUCKET,"first",file));
+
+              reopened.done(BUCKET,"second",file);
+              reopened.close(false);
+
+              UploadJournal reader = UploadJournal.open(journal);
+
+              assertEquals(2,reader.size());
+              assertTrue  (reader.isDone(BUCKET,"first",file));
+              assertTrue  (reader.isDone(BUCKET,"second",file));
+       }
+
+       @Test
+       public void testClose() throws Exception {
+              UploadJournal writer = UploadJournal.open(journal);
+
+              writer.done(BUCKET,"key",file);
+              writer.close(true);
+
+              assertFalse(journal.exists());
+              assertEquals(0,UploadJournal.open(journal).size());
+       }
+
+       // IMPLEMENTATION
+
+       private static void write(File file,String text) throws IOException {
+               FileOutputStream out = new FileOutputStream(file);
+
+               try { out.write(text.getBytes("UTF-8"));
+               } finally {
+                   out.close();
+               }
+
+               file.setLastModified(file.lastModified() + 2000);
+       }
+
+       private static void append(File file,String text) throws IOException {
+               FileOutputStream out = new FileOutputStream(file,true);
+
+               try { out.write(text.getBytes("UTF-8"));
+               } finally {
+                   out.close();
+               }
+       }
+}